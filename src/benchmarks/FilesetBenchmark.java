@@ -0,0 +1,63 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.copalis.jam.util.Paths;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of determining the state of filesets in synthetic source trees
+ *
+ * @author gilesjb
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilesetBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int files;
+
+    Path root;
+    Fileset found, listed;
+
+    @Setup public void setup() throws IOException {
+        root = Files.createTempDirectory("jam-bench");
+        for (int i = 0; i < files; i++) {
+            Path dir = root.resolve("pkg" + i / 100);
+            Files.createDirectories(dir);
+            Files.writeString(dir.resolve("Source" + i + ".java"), "class Source" + i + " { }");
+            if (i % 10 == 0) Files.writeString(dir.resolve("notes" + i + ".txt"), "");
+        }
+        found = Fileset.find(root.toString(), "**.java");
+        listed = Fileset.of(found.stream().map(File::toPath));
+    }
+
+    @TearDown public void tearDown() {
+        Paths.rmDir(root);
+    }
+
+    @Benchmark public Serializable patternState() {
+        return found.currentState();
+    }
+
+    @Benchmark public Serializable listState() {
+        return listed.currentState();
+    }
+}
@@ -0,0 +1,81 @@
+package org.copalis.jam.memo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of saving and loading caches of various sizes
+ *
+ * @author gilesjb
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheBenchmark {
+
+    public interface Items {
+        default String item(String key) {
+            return key + "-value";
+        }
+
+        default String group(int group) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 10; i++) {
+                sb.append(item(group + "." + i));
+            }
+            return sb.toString();
+        }
+    }
+
+    @Param({"100", "10000", "100000"})
+    public int entries;
+
+    Memorizer memo;
+    byte[] saved;
+
+    @Setup public void setup() throws IOException {
+        memo = new Memorizer();
+        Items items = memo.instantiate(Items.class);
+        for (int group = 0; memo.size() < entries; group++) {
+            items.group(group);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        memo.save(out);
+        saved = out.toByteArray();
+    }
+
+    @Benchmark public int save() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(saved.length);
+        memo.save(out);
+        return out.size();
+    }
+
+    @Benchmark public int load() throws IOException {
+        Memorizer loaded = new Memorizer();
+        loaded.load(new ByteArrayInputStream(saved));
+        return loaded.size();
+    }
+
+    @Benchmark public int loadAndDecode() throws IOException {
+        Memorizer loaded = new Memorizer();
+        loaded.load(new ByteArrayInputStream(saved));
+        return loaded.entries((result, current) -> { });
+    }
+}
@@ -0,0 +1,126 @@
+package org.copalis.jam.memo;
+
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of memoized method calls and cache entry staleness checks
+ *
+ * @author gilesjb
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemorizerBenchmark {
+
+    public interface Items {
+        default String item(String key) {
+            return key + "-value";
+        }
+
+        default String join(String sep, String... parts) {
+            return String.join(sep, parts);
+        }
+    }
+
+    record Dependency(int id) implements Mutable {
+        public Serializable currentState() {
+            return id;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Calls {
+        @Param({"proxy", "generated"})
+        public String instance;
+
+        Memorizer memo;
+        Items items;
+        String[] keys = new String[1 << 16];
+        int next;
+
+        @Setup public void setup() {
+            memo = new Memorizer();
+            items = instance.equals("proxy")
+                    ? memo.instantiate(Items.class)
+                    : memo.instantiateGenerated(Items.class);
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = "key" + i;
+            }
+            items.item("hit");
+        }
+
+        String nextKey() {
+            if (next == keys.length) {
+                next = 0;
+                memo.forget();
+            }
+            return keys[next++];
+        }
+    }
+
+    @Benchmark public String hit(Calls calls) {
+        return calls.items.item("hit");
+    }
+
+    @Benchmark public String miss(Calls calls) {
+        return calls.items.item(calls.nextKey());
+    }
+
+    @State(Scope.Benchmark)
+    public static class VarArgs {
+        Method join;
+        Object[] args = {"-", new String[] {"a", "b", "c", "d"}};
+
+        @Setup public void setup() throws NoSuchMethodException {
+            join = Items.class.getMethod("join", String.class, String[].class);
+        }
+    }
+
+    @Benchmark public int varArgsInvocation(VarArgs varArgs) {
+        return new Invocation(varArgs.join, varArgs.args).hashCode();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Dependencies {
+        @Param({"1", "100", "10000"})
+        public int count;
+
+        Result result;
+        Map<Mutable, Serializable> states = new HashMap<>();
+
+        @Setup public void setup() {
+            Set<Mutable> dependencies = new HashSet<>();
+            for (int i = 0; i < count; i++) {
+                Dependency dependency = new Dependency(i);
+                dependencies.add(dependency);
+                states.put(dependency, dependency.currentState());
+            }
+            result = new Result(new Invocation("build", List.of()), "value", dependencies);
+        }
+    }
+
+    @Benchmark public boolean isCurrent(Dependencies dependencies) {
+        return dependencies.result.isCurrent(dependencies.states);
+    }
+}
@@ -6,10 +6,13 @@ import java.net.URI;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import org.copalis.jam.memo.CacheFormat;
 import org.copalis.jam.memo.Mutable;
+import org.copalis.jam.util.FileStates;
 
 /**
  * A reference to an existing file
@@ -19,6 +22,18 @@ import org.copalis.jam.memo.Mutable;
 public final class File extends java.io.File implements Mutable {
     private static final long serialVersionUID = 1L;
 
+    static {
+        CacheFormat.register(File.class, new CacheFormat.Codec<>() {
+            @Override public void write(File file, CacheFormat.Output out) throws IOException {
+                out.writePath(file.getPath());
+            }
+
+            @Override public File read(CacheFormat.Input in) throws IOException {
+                return new File(in.readPath());
+            }
+        });
+    }
+
     /**
      * Creates a reference to a file specified by a URI
      * @param uri the file's URI
@@ -73,10 +88,17 @@ public final class File extends java.io.File implements Mutable {
     }
 
     @Override public boolean equals(Object other) {
-        return !(other instanceof File file) || super.equals(other);
+        return other instanceof File && super.equals(other);
     }
 
+    /**
+     * Gets the state of this file, which is the digest of its contents if a {@link FileStates} database is active,
+     * or otherwise its modification time
+     * @return the file's current state
+     */
     public Serializable currentState() {
-        return lastModified();
+        FileStates states = FileStates.active();
+        String digest = Objects.isNull(states) ? null : states.digest(toPath());
+        return Objects.isNull(digest) ? lastModified() : digest;
     }
 }
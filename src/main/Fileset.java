@@ -5,15 +5,21 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import org.copalis.jam.memo.CacheFormat;
 import org.copalis.jam.memo.Mutable;
+import org.copalis.jam.util.FileStates;
+import org.copalis.jam.util.FileWatcher;
 import org.copalis.jam.util.Paths;
 
 /**
@@ -25,6 +31,29 @@ public final class Fileset implements Mutable, Iterable<File> {
 
     private static final long serialVersionUID = -6221550505534926198L;
 
+    static {
+        CacheFormat.register(Fileset.class, new CacheFormat.Codec<>() {
+            @Override public void write(Fileset fs, CacheFormat.Output out) throws IOException {
+                out.writePath(fs.root);
+                out.writeString(fs.pattern);
+                out.writeInt(fs.files instanceof TreeSet ? 1 : 0);
+                out.writeInt(fs.files.size());
+                for (File file : fs.files) {
+                    out.writePath(file.getPath());
+                }
+            }
+
+            @Override public Fileset read(CacheFormat.Input in) throws IOException {
+                String root = in.readPath(), pattern = in.readString();
+                Set<File> files = in.readInt() == 1 ? new TreeSet<>() : new LinkedHashSet<>();
+                for (int i = in.readInt(); i > 0; i--) {
+                    files.add(new File(in.readPath()));
+                }
+                return new Fileset(files, root, pattern);
+            }
+        });
+    }
+
     /**
      * The files that belong to this set
      */
@@ -113,6 +142,13 @@ public final class Fileset implements Mutable, Iterable<File> {
             return Stream.empty();
         }
         PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        FileWatcher watcher = FileWatcher.active();
+        Stream<Path> watched = Objects.isNull(watcher) ? null : watcher.files(path);
+        if (Objects.nonNull(watched)) {
+            return watched
+                .filter(p -> matcher.matches(path.relativize(p)))
+                .map(File::new);
+        }
         try {
             return Files.walk(path)
                 .filter(p -> matcher.matches(path.relativize(p)))
@@ -180,12 +216,29 @@ public final class Fileset implements Mutable, Iterable<File> {
     }
 
     @Override public boolean equals(Object obj) {
-        return !(obj instanceof Fileset other) || Objects.equals(files, other.files)
+        return obj instanceof Fileset other && Objects.equals(files, other.files)
                 && Objects.equals(root, other.root)
                 && Objects.equals(pattern, other.pattern);
     }
 
     public Serializable currentState() {
-        return Mutable.snapshots(Objects.nonNull(pattern) ? findFiles(Path.of(root), pattern) : files.stream());
+        FileStates states = FileStates.active();
+        FileWatcher watcher = FileWatcher.active();
+        if (Objects.isNull(states) && Objects.isNull(watcher)) {
+            return Mutable.snapshots(Objects.nonNull(pattern) ? findFiles(Path.of(root), pattern) : files.stream());
+        }
+        List<File> current = (Objects.nonNull(pattern) ? findFiles(Path.of(root), pattern) : files.stream()).toList();
+        if (Objects.nonNull(states)) {
+            states.refresh(current.stream().map(File::toPath).toList());
+            return Mutable.snapshots(current.stream());
+        }
+        // get the modification times of all the files from one update of the watcher's index
+        Map<Path, Long> times = watcher.modificationTimes(current.stream().map(File::toPath).toList());
+        HashMap<File, Serializable> snapshot = new HashMap<>();
+        for (File file : current) {
+            Long modified = times.get(file.toPath());
+            snapshot.put(file, Objects.isNull(modified) ? file.lastModified() : modified);
+        }
+        return snapshot;
     }
 }
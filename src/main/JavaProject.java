@@ -1,17 +1,20 @@
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.copalis.jam.util.Args;
 import org.copalis.jam.util.Compiler;
+import org.copalis.jam.util.IncrementalCompiler;
 import org.copalis.jam.util.IvyResolver;
+import org.copalis.jam.util.JarWriter;
 import org.copalis.jam.util.PackageResolver;
 import org.copalis.jam.util.Paths;
 
@@ -24,7 +27,8 @@ import org.copalis.jam.util.Paths;
  * <li>running {@link #junit(String, String...) unit tests}
  * <li>generating {@link #javadoc(String, String...) JavaDoc}
  * <li>downloading {@link #resolve(String...) dependencies} from the Maven repository
- * <li>creating {@link #jar(String, Fileset...) jar files}
+ * <li>creating {@link #jar(String, Fileset...) jar files},
+ * or {@link #javacJar(String, String, Fileset, List, Fileset...) compiling} directly into a jar file
  * </ul>
  *
  * @author gilesjb
@@ -40,6 +44,19 @@ public interface JavaProject extends FileProject {
         Args.of("java").and(args).run();
     }
 
+    /**
+     * Indicates whether {@link #javac(String, Fileset, String...)} compiles incrementally,
+     * only recompiling the source files which have changed and the source files that depend on
+     * the API of classes which have changed.
+     * Compilations which may run annotation processors are always done in full.
+     * The default implementation returns false.
+     * @return true if Java code should be compiled incrementally
+     * @see IncrementalCompiler
+     */
+    default boolean incrementalJavac() {
+        return false;
+    }
+
     /**
      * Compiles Java code.
      * @param path the directory path for class files, relative to {@link #buildPath()}
@@ -47,12 +64,15 @@ public interface JavaProject extends FileProject {
      * @param args the command-line options to be passed to the javac compiler
      * @return a reference to the compiled {@code .class} files
      * @see <a href="https://docs.oracle.com/javase/8/docs/technotes/tools/windows/javac.html">javac</a>
+     * @see #incrementalJavac()
      */
     default Fileset javac(String path, Fileset sources, String... args) {
         String dest = buildPath(path);
 
-        Set<File> classFiles = Compiler.compile(sources,
-                        Stream.concat(Stream.of("-d", dest), Arrays.stream(args)).toList())
+        List<URI> compiled = incrementalJavac()
+                ? IncrementalCompiler.compile(sources, Path.of(dest), Arrays.asList(args))
+                : Compiler.compile(sources, Stream.concat(Stream.of("-d", dest), Arrays.stream(args)).toList());
+        Set<File> classFiles = compiled
                 .stream()
                 .map(Paths::fromURI)
                 .map(File::new)
@@ -75,7 +95,9 @@ public interface JavaProject extends FileProject {
 
     /**
      * Gets the package dependency resolver.
-     * The default implementation uses Apache Ivy to download packages from the Maven repository.
+     * The default implementation uses Apache Ivy to download packages from the Maven repository,
+     * and records the resolved packages in a lockfile in the {@link #pkgCachePath() package cache}
+     * so that Ivy is only run when the lockfile does not match.
      * @return the package resolver
      */
     default PackageResolver packageResolver() {
@@ -107,6 +129,18 @@ public interface JavaProject extends FileProject {
         Paths.rmDir(Path.of(pkgCachePath()));
     }
 
+    /**
+     * Deletes the package resolver's lockfile, so that packages are resolved by Ivy again
+     * the next time they are resolved
+     */
+    default void cleanPkgLock() {
+        try {
+            Files.deleteIfExists(Path.of(pkgCachePath(), IvyResolver.LOCK_FILE));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Specifies the jUnit console and runtime libraries.
      * @return a dependency referencing the jUnit libraries
@@ -158,29 +192,58 @@ public interface JavaProject extends FileProject {
     }
 
     /**
-     * Creates a {@code .jar} archive
+     * Creates a {@code .jar} archive.
+     * Entries are compressed in parallel, and entries which are unchanged in an existing archive are reused.
      * @param jarPath the location and name of the generated archive
      * @param contents references to the files that should be placed in the archive
      * @return a reference to the generated archive
      */
     default File jar(String jarPath, Fileset... contents) {
         String path = buildPath() + '/' + jarPath;
-        try (FileOutputStream stream = new FileOutputStream(path)) {
-            try (JarOutputStream out = new JarOutputStream(stream)) {
-                for (Fileset fs : contents) {
-                    Path base = Path.of(fs.root);
-                    for (File file : fs) {
-                        JarEntry entry = new JarEntry(base.relativize(file.toPath()).toString());
-                        entry.setTime(0);
-                        out.putNextEntry(entry);
-                        Files.copy(file.toPath(), out);
-                        out.closeEntry();
-                    }
-                }
+        try (JarWriter out = new JarWriter(Path.of(path))) {
+            addContents(out, contents);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return new File(path);
+    }
+
+    /**
+     * Compiles Java code directly into a {@code .jar} archive.
+     * The class files are kept in memory and written to the archive as they are,
+     * rather than being written to disk and read back.
+     * @param jarPath the location and name of the generated archive
+     * @param classesPath the directory path that class files are also written to, relative to {@link #buildPath()},
+     * or null if they should only be written to the archive
+     * @param sources the source files to compile
+     * @param args the command-line options to be passed to the javac compiler
+     * @param contents references to other files that should be placed in the archive
+     * @return a reference to the generated archive
+     * @see #javac(String, Fileset, String...)
+     */
+    default File javacJar(String jarPath, String classesPath, Fileset sources, List<String> args,
+            Fileset... contents) {
+        String path = buildPath() + '/' + jarPath;
+        List<String> options = Objects.isNull(classesPath) ? args
+                : Stream.concat(Stream.of("-d", buildPath(classesPath)), args.stream()).toList();
+        Map<String, byte[]> classes = Compiler.compileInMemory(sources, options, Objects.nonNull(classesPath));
+        try (JarWriter out = new JarWriter(Path.of(path))) {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                out.add(entry.getKey(), entry.getValue());
             }
+            addContents(out, contents);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
         return new File(path);
     }
+
+    private static void addContents(JarWriter out, Fileset... contents) throws IOException {
+        for (Fileset fs : contents) {
+            Path base = Path.of(fs.root);
+            for (File file : fs) {
+                out.add(base.relativize(file.toPath()).toString(), file.toPath());
+            }
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package org.copalis.jam.cli;
 
 import java.io.File;
+import java.util.Objects;
+import java.util.function.Supplier;
 
 import org.copalis.jam.memo.Memorizer;
 
@@ -8,15 +10,34 @@ import org.copalis.jam.memo.Memorizer;
  * Represents the build state
  * @param memoizer the memoizer instance
  * @param cacheFile the file used to persist the cache
+ * @param statistics a supplier of the runtime metrics of the current build
  *
  * @author giles
  */
-public record BuildContext(Memorizer memoizer, File cacheFile) {
+public record BuildContext(Memorizer memoizer, File cacheFile, Supplier<BuildStats> statistics) {
 
     /**
      * A sentinel object that, when used as the return value of a proxied method,
      * will be replaced by {@link BuildController} method interceptor with
      * an instance that references the real cache state
      */
-    public static BuildContext REFERENCE = new BuildContext(null, null);
+    public static BuildContext REFERENCE = new BuildContext(null, null, null);
+
+    /**
+     * Creates a build context which does not provide runtime metrics
+     * @param memoizer the memoizer instance
+     * @param cacheFile the file used to persist the cache
+     */
+    public BuildContext(Memorizer memoizer, File cacheFile) {
+        this(memoizer, cacheFile, () -> null);
+    }
+
+    /**
+     * Gets the runtime metrics of the method calls made by the current build.
+     * The context may be a cached result of an earlier build, so the metrics are obtained when this method is called
+     * @return the metrics, or null if this is the {@link #REFERENCE} object
+     */
+    public BuildStats stats() {
+        return Objects.isNull(statistics) ? null : statistics.get();
+    }
 }
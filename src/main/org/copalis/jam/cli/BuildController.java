@@ -8,14 +8,25 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -23,6 +34,10 @@ import java.util.stream.Stream;
 import org.copalis.jam.memo.Invocation;
 import org.copalis.jam.memo.Memorizer;
 import org.copalis.jam.memo.Observer;
+import org.copalis.jam.util.Args;
+import org.copalis.jam.util.DirectoryCache;
+import org.copalis.jam.util.FileStates;
+import org.copalis.jam.util.FileWatcher;
 
 /**
  * A build process command-line argument parser and controller.
@@ -53,11 +68,15 @@ import org.copalis.jam.memo.Observer;
  * {@code default void clean() { ... }}
  * </pre>
  * <h2>Incremental builds</h2>
- * At the end of a build the state of the memoizer's cache is saved to a file called {@code .<project>.ser},
+ * The state of the memoizer's cache is saved to a file called {@code .<project>.ser},
  * where {@code <project>} is the unqualified name of the project interface.
  * Subsequent builds load the previous build's cache and check for modifications to mutable dependencies
  * so that target executions only rebuild artifacts which are stale.
-
+ * Changes to the cache are appended to a journal file called {@code .<project>.journal} as they are made,
+ * so that an interrupted build keeps the results it has already computed.
+ * At the end of a build the journal is compacted into the cache file once it is larger than the cache file.
+ * Entries which were not used by recent builds are only removed when requested by the {@code --gc} option,
+ * or when the cache is compacted if a retention window is set by the {@code --retain} option.
  *
  * @param <T> the project interface type
  * @see #executeBuild(Consumer, String[]) Command-line options
@@ -90,43 +109,68 @@ public class BuildController<T> {
 
     record Call(Method method, List<Object> params) { }
 
+    private static final long MIN_JOURNAL_SIZE = 64 * 1024;
+    private static final int GC_BUILDS = 10;
+
     private final File cacheFile;
-    private final Memorizer memo;
+    private final File journalFile;
+    private final File statesFile;
+    private final File socketFile;
+    private boolean compactFirst;
+    private int retainedBuilds;
     private final Class<T> type;
-    private final Set<Call> cached = new HashSet<>();
-    private final PrintStream out = System.out;
+    private final Set<Call> cached = ConcurrentHashMap.newKeySet();
+    private PrintStream out = System.out;
+    private boolean colored = colors;
+    private boolean serving;
+    private BuildStats stats = new BuildStats();
+    private boolean printStats;
+    private String sharedCache;
+    private boolean contentHash;
+
+    private volatile BooleanSupplier cancelled = () -> false;
 
     private final Observer observer = new Observer() {
         public void startMethod(Observer.Status status, Method method, List<Object> params) {
+            if (cancelled.getAsBoolean()) {
+                throw new CancellationException("Build cancelled because the client disconnected");
+            }
             if (status != Observer.Status.CURRENT || cached.add(new Call(method, params))) {
-                switch (status) {
-                case CURRENT: color(GREEN); break;
-                case COMPUTE: color(YELLOW); break;
-                case REFRESH: color(CYAN); break;
+                synchronized (out) {
+                    switch (status) {
+                    case CURRENT: color(GREEN); break;
+                    case COMPUTE: color(YELLOW); break;
+                    case REFRESH: color(CYAN); break;
+                    }
+                    print("[").print(status.name().toLowerCase());
+                    print(" ".repeat(7 - status.name().length()));
+                    print("]  ");
+                    color(RESET).printMethod(method.getName(), params);
+                    line();
                 }
-                print("[").print(status.name().toLowerCase());
-                print(" ".repeat(7 - status.name().length()));
-                print("]  ");
-                color(RESET).printMethod(method.getName(), params);
-                line();
             }
 
-            calls++;
+            calls.get()[0]++;
+            stats.start(status, method, params);
         }
 
         public Object endMethod(Observer.Status status, Method method, List<Object> params, Object result) {
-            calls--;
-            if (result == BuildContext.REFERENCE)
-                lastResult = new BuildContext(memo, cacheFile);
-            else
-                lastResult = result;
-            return lastResult;
+            calls.get()[0]--;
+            stats.end(method, params);
+            Object value = result == BuildContext.REFERENCE ? new BuildContext(memo, cacheFile, () -> stats) : result;
+            if (Thread.currentThread() == controlThread) {
+                lastResult = value;
+            }
+            return value;
         }
     };
 
-    private int calls = 0;
+    private final ThreadLocal<int[]> calls = ThreadLocal.withInitial(() -> new int[1]);
+    private Memorizer memo;
+    private ForkJoinPool pool;
     private T object;
-    private Object lastResult;
+    private Thread controlThread;
+    private volatile Object lastResult;
 
     /**
      * Creates a build controller instance
@@ -135,6 +179,9 @@ public class BuildController<T> {
     public BuildController(Class<T> type) {
         this.type = type;
         this.cacheFile = new File("." + type.getSimpleName() + ".ser");
+        this.journalFile = new File("." + type.getSimpleName() + ".journal");
+        this.statesFile = new File("." + type.getSimpleName() + ".states");
+        this.socketFile = new File("." + type.getSimpleName() + ".sock");
         this.memo = new Memorizer(observer);
     }
 
@@ -150,22 +197,79 @@ public class BuildController<T> {
      * <dt>{@code --help}<dd>Displays help information
      * <dt>{@code --cache}<dd>Displays the contents of the memoizer cache
      * <dt>{@code --targets}<dd>Displays the names, return types, and cache status of the target methods
+     * <dt>{@code --gc}[{@code =}<i>builds</i>]<dd>Removes the cache entries which were not used by the last 10 builds,
+     * or by the specified number of builds
+     * <dt>{@code --retain=}<i>builds</i><dd>Removes the cache entries which were not used by the specified number
+     * of builds whenever the cache is compacted. Otherwise compaction keeps all entries.
+     * May be followed by target names
+     * <dt>{@code --parallel}<dd>Re-executes stale methods in parallel, using the call tree of the previous build.
+     * May be followed by target names
+     * <dt>{@code --stats}<dd>Displays the call counts, elapsed time and memory allocation of each method after the build.
+     * May be followed by target names
+     * <dt>{@code --content-hash}<dd>Determines whether files have been modified by the digests of their contents
+     * rather than their modification times, which are recorded in a file state database.
+     * May be followed by target names
+     * <dt>{@code --shared-cache=}<i>directory</i><dd>Reuses the outputs of method calls that were built
+     * in other workspaces with identical inputs, and shares the outputs built by this workspace, using the cache
+     * in the specified directory. May be followed by target names
+     * <dt>{@code --daemon}<dd>Executes the build in a long-running build server, starting the server if necessary,
+     * so that the JVM, the memoizer's cache and the compiler stay warm between builds.
+     * The server restarts when the build script is modified. May be followed by other options and target names
      * <dt><i>target-name</i>...<dd>Executes the target methods with the specified names
      * </dl>
-     * If no arguments are specified, {@code buildFn} is invoked.
+     * If no target names are specified, {@code buildFn} is invoked.
      *
      * @param buildFn a consumer that invokes the default build target
      * @param args the build's command line arguments.
      */
     public void executeBuild(Consumer<T> buildFn, String[] args) {
-        long start = System.currentTimeMillis();
         String script = ProcessHandle.current().info().arguments()
                 .map(a -> a[a.length - args.length - 1]).orElse("");
+        execute(buildFn, script, args);
+    }
+
+    private void execute(Consumer<T> buildFn, String script, String[] args) {
+        long start = System.currentTimeMillis();
         boolean exit = false;
+        controlThread = Thread.currentThread();
+        calls.get()[0] = 0; // a failed build may not have ended all the calls it started
+        cached.clear();
+        lastResult = null;
+        stats = new BuildStats();
+        printStats = contentHash = false;
+        sharedCache = null;
+        retainedBuilds = 0;
 
         try {
-            for (int opt = 0; opt < args.length && args[opt].startsWith("-"); opt++) {
-                switch (args[opt]) {
+            int opt = 0;
+            for (; opt < args.length && args[opt].startsWith("-"); opt++) {
+                String option = args[opt];
+                int gcBuilds = GC_BUILDS;
+                if (option.startsWith("--gc=")) {
+                    gcBuilds = Integer.parseInt(option.substring("--gc=".length()));
+                    option = "--gc";
+                }
+                if (option.startsWith("--retain=")) {
+                    retainedBuilds = Integer.parseInt(option.substring("--retain=".length()));
+                    continue;
+                }
+                if (option.startsWith("--shared-cache=")) {
+                    sharedCache = option.substring("--shared-cache=".length());
+                    continue;
+                }
+                switch (option) {
+                case "--parallel":
+                    if (Objects.isNull(object) && Objects.isNull(pool)) {
+                        pool = new ForkJoinPool();
+                        memo = new Memorizer(observer, pool);
+                    }
+                    continue;
+                case "--stats":
+                    printStats = true;
+                    continue;
+                case "--content-hash":
+                    contentHash = true;
+                    continue;
                 case "--cache":
                     load(script);
                     printCacheContents();
@@ -174,6 +278,23 @@ public class BuildController<T> {
                     load(script);
                     printBuildTargets(buildFn);
                     break;
+                case "--daemon":
+                    if (serving) continue;
+                    List<String> forwarded = new ArrayList<>(Arrays.asList(args));
+                    forwarded.remove(opt);
+                    BuildDaemon.forward(socketFile.toPath(), serverCommand(args.length),
+                            new File("." + type.getSimpleName() + ".daemon.log"),
+                            forwarded.toArray(String[]::new), colored);
+                    break;
+                case "--serve":
+                    if (serving) continue;
+                    serve(buildFn, script);
+                    break;
+                case "--gc":
+                    load(script);
+                    print("Removed ").print(memo.gc(gcBuilds)).print(" unused cache entries").line();
+                    compact();
+                    break;
                 default:
                     color(RED_BRIGHT).print("Illegal option: ").color(RESET).print(args[opt]).line();
                 case "--help":
@@ -182,19 +303,28 @@ public class BuildController<T> {
                     print(path).print("                    Build the default target").line();
                     print(path).print(" ").color(ITALIC).print("<target-name>...").color(RESET).print("   Build specified target(s)").line();
                     print(path).print(" --targets          Print available build targets").line();
+                    print(path).print(" --parallel ...     Build target(s) in parallel").line();
+                    print(path).print(" --stats ...        Build target(s) and print method statistics").line();
+                    print(path).print(" --content-hash ... Build target(s) detecting changes by file contents").line();
+                    print(path).print(" --daemon ...       Build target(s) in a long-running build server").line();
+                    print(path).print(" --shared-cache=<dir> ...  Build target(s) using a cache shared by workspaces").line();
+                    print(path).print(" --retain=<builds> ...  Build target(s) removing unused entries when compacting").line();
                     print(path).print(" --cache            Print cache contents").line();
+                    print(path).print(" --gc[=<builds>]    Remove cache entries unused by recent builds").line();
                     print(path).print(" --help             Print this help message").line();
                 }
                 exit = true;
             }
 
             if (!exit) {
+                T project = load(script);
+                OutputStream journal = startJournal();
                 try {
-                    if (args.length == 0) {
-                        buildFn.accept(load(script));
+                    if (opt == args.length) {
+                        buildFn.accept(project);
                     } else {
-                        for (String arg : args) {
-                            type.getMethod(arg).invoke(load(script));
+                        for (String arg : Arrays.copyOfRange(args, opt, args.length)) {
+                            type.getMethod(arg).invoke(project);
                         }
                     }
                     if (Objects.nonNull(lastResult)) {
@@ -203,12 +333,13 @@ public class BuildController<T> {
                     }
 
                 } finally {
-                    if (memo.entries((e, p) -> {}) > 0) {
-                        try (OutputStream out = new FileOutputStream(cacheFile)) {
-                            memo.save(out);
-                        }
-                    } else if (cacheFile.exists()) {
-                        cacheFile.delete();
+                    memo.journal(null, false);
+                    journal.close();
+                    if (Objects.nonNull(FileStates.active())) {
+                        FileStates.active().save(statesFile.toPath());
+                    }
+                    if (memo.size() == 0 || journalFile.length() > Math.max(cacheFile.length(), MIN_JOURNAL_SIZE)) {
+                        compact();
                     }
                 }
                 color(GREEN_BRIGHT).print("COMPLETED");
@@ -221,19 +352,115 @@ public class BuildController<T> {
             color(RED_BRIGHT).print("FAILED");
         } finally {
             if (!exit) print(String.format(" in %dms", System.currentTimeMillis() - start)).color(RESET).line();
+            if (!exit && printStats) printStats();
+            if (!serving && Objects.nonNull(pool)) {
+                // a build server keeps the pool until it stops serving
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Gets the command which starts a build server for this build
+     * @param scriptArgs the number of command-line arguments passed to the build script
+     * @return the command
+     */
+    private List<String> serverCommand(int scriptArgs) {
+        ProcessHandle.Info info = ProcessHandle.current().info();
+        String[] arguments = info.arguments().orElse(new String[0]);
+        List<String> command = new ArrayList<>();
+        command.add(info.command().orElse("java"));
+        command.addAll(Arrays.asList(arguments).subList(0, arguments.length - scriptArgs));
+        command.add("--serve");
+        return command;
+    }
+
+    /**
+     * Gets the directories that the project writes its outputs to, which the file watcher does not need to watch
+     * @return the project's {@code buildPath()} directory, or an empty list if it does not have one
+     */
+    private List<Path> outputDirectories() {
+        try {
+            Method buildPath = type.getMethod("buildPath");
+            if (buildPath.getReturnType() != String.class) return List.of();
+            // the default method is called directly, so that the call is not part of a build
+            Object project = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                    InvocationHandler::invokeDefault);
+            return List.of(Path.of((String) buildPath.invoke(project)));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return List.of();
         }
     }
 
-    private T load(String script) throws ClassNotFoundException, IOException {
+    /**
+     * Executes the builds requested by clients until the build script is modified,
+     * keeping the project instance and the memoizer's cache between builds
+     * @param buildFn a consumer that invokes the default build target
+     * @param script the path of the build script
+     * @throws IOException if an IO exception occurs
+     */
+    private void serve(Consumer<T> buildFn, String script) throws IOException {
+        serving = true;
+        FileWatcher watcher = FileWatcher.watch(Path.of(""), outputDirectories());
+        FileWatcher.activate(watcher);
+        Args.captureOutput(true);
+        try {
+            BuildDaemon.serve(socketFile.toPath(), new File(script), (args, stdout, stderr, color, disconnected) -> {
+                PrintStream sysOut = System.out, sysErr = System.err;
+                System.setOut(stdout);
+                System.setErr(stderr);
+                out = stdout;
+                colored = color;
+                cancelled = disconnected;
+                try {
+                    execute(buildFn, script, args);
+                } finally {
+                    System.setOut(sysOut);
+                    System.setErr(sysErr);
+                    out = sysOut;
+                    colored = colors;
+                    cancelled = () -> false;
+                }
+            });
+        } finally {
+            Args.captureOutput(false);
+            FileWatcher.activate(null);
+            if (Objects.nonNull(watcher)) watcher.close();
+            serving = false;
+        }
+    }
+
+    private T load(String script) throws IOException {
+        memo.share(Objects.isNull(sharedCache) ? null : new DirectoryCache(Path.of(sharedCache), Path.of("")));
+        if (!contentHash) {
+            FileStates.activate(null);
+        } else if (Objects.isNull(FileStates.active())) {
+            FileStates.activate(FileStates.load(statesFile.toPath()));
+        }
         if (Objects.isNull(object)) {
             object = memo.instantiate(type);
             File scriptFile = new File(script);
 
-            if (cacheFile.exists() && cacheFile.lastModified() < scriptFile.lastModified()) {
+            File saved = cacheFile.exists() ? cacheFile : journalFile;
+            if (saved.exists() && saved.lastModified() < scriptFile.lastModified()) {
                 print("Build script has been modified; Using new method cache.").line();
-            } else if (cacheFile.exists()) {
+                compactFirst = true;
+                return object;
+            }
+            if (cacheFile.exists()) {
                 try (InputStream in = new FileInputStream(cacheFile)) {
                     memo.load(in);
+                } catch (StreamCorruptedException e) {
+                    print("Cache file has an unsupported format; Using new method cache.").line();
+                    compactFirst = true;
+                }
+            }
+            if (journalFile.exists()) {
+                try (InputStream in = new FileInputStream(journalFile)) {
+                    compactFirst |= !memo.replay(in);
+                } catch (StreamCorruptedException e) {
+                    print("Journal file has an unsupported format; Ignoring journal.").line();
+                    compactFirst = true;
                 }
             }
         }
@@ -241,6 +468,43 @@ public class BuildController<T> {
         return object;
     }
 
+    /**
+     * Starts recording changes to the cache in the journal file.
+     * If the saved cache could not be used or the journal could not be read completely,
+     * the files are replaced first so that the journal is not appended to an invalid file.
+     * @return the journal output stream
+     * @throws IOException if an IO exception occurs
+     */
+    private OutputStream startJournal() throws IOException {
+        if (compactFirst) {
+            compact();
+        }
+        boolean append = journalFile.exists();
+        OutputStream out = new FileOutputStream(journalFile, append);
+        memo.journal(out, append);
+        return out;
+    }
+
+    /**
+     * Saves the cache to the cache file, without the entries that were not used by the retained builds
+     * if a retention window is set, and deletes the journal file
+     * @throws IOException if an IO exception occurs
+     */
+    private void compact() throws IOException {
+        if (retainedBuilds > 0) memo.gc(retainedBuilds);
+        if (memo.size() == 0) {
+            cacheFile.delete();
+        } else {
+            File temp = new File(cacheFile.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(temp)) {
+                memo.save(out);
+            }
+            Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        journalFile.delete();
+        compactFirst = false;
+    }
+
     private void printCacheContents() {
         print("Contents of cache file ").print(cacheFile).line();
         memo.entries((e, current) -> {
@@ -251,6 +515,16 @@ public class BuildController<T> {
         });
     }
 
+    private void printStats() {
+        color(BOLD).print(String.format("%-32s %7s %7s %7s %7s %10s %10s %10s",
+                "Method", "Calls", "Current", "Compute", "Refresh", "Time ms", "Self ms", "Alloc MB")).color(RESET).line();
+        for (BuildStats.MethodStats m : stats.methods()) {
+            print(String.format("%-32s %7d %7d %7d %7d %10.1f %10.1f %10.1f",
+                    m.name(), m.calls(), m.hits(), m.misses(), m.refreshes(),
+                    m.wallNanos() / 1e6, m.selfNanos() / 1e6, m.allocatedBytes() / 1e6)).line();
+        }
+    }
+
     private void printBuildTargets(Consumer<T> buildFn) {
         printTargets(type, new HashSet<>());
         try {
@@ -324,7 +598,7 @@ public class BuildController<T> {
     }
 
     private void printMethod(String method, List<Object> params) {
-        print("  ".repeat(calls)).print(method);
+        print("  ".repeat(calls.get()[0])).print(method);
         for (Object param : params) {
             print(" ");
             printValue(param);
@@ -346,7 +620,7 @@ public class BuildController<T> {
     }
 
     private BuildController<T> color(String... strs) {
-        if (colors) {
+        if (colored) {
             for (String str : strs) {
                 out.print(str);
             }
@@ -0,0 +1,287 @@
+package org.copalis.jam.cli;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A long-running build server which executes builds requested by clients over a Unix domain socket,
+ * and the client which forwards a build's command-line arguments to it.
+ * <p>
+ * The server keeps the JVM, the memoizer's cache and the compiler warm between builds,
+ * and streams each build's console output back to the client.
+ * If the client disconnects, the build is cancelled.
+ * It exits when the build script is modified, so that the next client starts a server running the new script,
+ * or when it has been idle for 3 hours.
+ *
+ * @author gilesjb
+ */
+final class BuildDaemon {
+    private BuildDaemon() { }
+
+    private static final int PROTOCOL = 1;
+    private static final byte OUT = 1, ERR = 2, EXIT = 3, RESTART = 4;
+    private static final long IDLE_MILLIS = TimeUnit.HOURS.toMillis(3);
+    private static final long START_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * Executes a build requested by a client
+     */
+    interface Builder {
+        /**
+         * Executes a build
+         * @param args the build's command line arguments
+         * @param out the build's standard output
+         * @param err the build's error output
+         * @param colors true if the client's console supports colors
+         * @param disconnected a function which returns true once the client has disconnected,
+         * after which the build should stop
+         */
+        void build(String[] args, PrintStream out, PrintStream err, boolean colors, BooleanSupplier disconnected);
+    }
+
+    /**
+     * Forwards a build to the server, starting the server if it is not running
+     * @param socket the path of the server's socket
+     * @param command the command which starts the server
+     * @param log the file that the server's own output is written to
+     * @param args the build's command line arguments
+     * @param colors true if the console supports colors
+     * @throws IOException if an IO exception occurs
+     */
+    static void forward(Path socket, List<String> command, File log, String[] args, boolean colors)
+            throws IOException {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            SocketChannel connected = connect(socket);
+            try (SocketChannel channel = Objects.nonNull(connected) ? connected : start(socket, command, log)) {
+                DataOutputStream request = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel)));
+                request.writeInt(PROTOCOL);
+                request.writeBoolean(colors);
+                request.writeInt(args.length);
+                for (String arg : args) {
+                    request.writeUTF(arg);
+                }
+                request.flush();
+
+                DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+                byte type;
+                while ((type = in.readByte()) == OUT || type == ERR) {
+                    PrintStream stream = type == ERR ? System.err : System.out;
+                    stream.write(in.readNBytes(in.readInt()));
+                    stream.flush();
+                }
+                if (type == EXIT) return;
+            } catch (EOFException e) {
+                throw new IOException("Build daemon exited unexpectedly; see " + log);
+            }
+            awaitExit(socket); // the server is restarting because the build script was modified
+        }
+        throw new IOException("Could not start build daemon; see " + log);
+    }
+
+    private static SocketChannel connect(Path socket) {
+        try {
+            return SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static SocketChannel start(Path socket, List<String> command, File log) throws IOException {
+        List<String> detached = new ArrayList<>();
+        if (new File("/usr/bin/setsid").canExecute()) {
+            detached.add("/usr/bin/setsid"); // so that interrupting the client does not stop the server
+        }
+        detached.addAll(command);
+        Process server = new ProcessBuilder(detached)
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")))
+                .start();
+
+        long deadline = System.currentTimeMillis() + START_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            SocketChannel channel = connect(socket);
+            if (Objects.nonNull(channel)) return channel;
+            if (!server.isAlive() || !pause()) break;
+        }
+        throw new IOException("Could not start build daemon; see " + log);
+    }
+
+    private static void awaitExit(Path socket) {
+        long deadline = System.currentTimeMillis() + START_MILLIS;
+        while (Files.exists(socket) && System.currentTimeMillis() < deadline && pause());
+    }
+
+    private static boolean pause() {
+        try {
+            Thread.sleep(50);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Serves build requests until the build script is modified or the server is idle
+     * @param socket the path of the server's socket
+     * @param script the build script
+     * @param builder the function which executes a requested build
+     * @throws IOException if the socket cannot be created
+     */
+    static void serve(Path socket, File script, Builder builder) throws IOException {
+        long version = script.lastModified();
+        Files.deleteIfExists(socket);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                Selector selector = Selector.open()) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Build daemon " + ProcessHandle.current().pid() + " listening on " + socket);
+
+            while (selector.select(IDLE_MILLIS) > 0) {
+                selector.selectedKeys().clear();
+                SocketChannel client = server.accept();
+                if (Objects.isNull(client)) continue;
+                try (client) {
+                    client.configureBlocking(true);
+                    DataInputStream request = new DataInputStream(Channels.newInputStream(client));
+                    DataOutputStream reply = new DataOutputStream(Channels.newOutputStream(client));
+                    if (request.readInt() != PROTOCOL) {
+                        reply.writeByte(RESTART);
+                        reply.flush();
+                        break;
+                    }
+                    boolean colors = request.readBoolean();
+                    String[] args = new String[request.readInt()];
+                    for (int i = 0; i < args.length; i++) {
+                        args[i] = request.readUTF();
+                    }
+                    if (script.lastModified() != version) {
+                        reply.writeByte(RESTART);
+                        reply.flush();
+                        break;
+                    }
+                    Monitor monitor = new Monitor(client, Thread.currentThread());
+                    try (PrintStream out = new PrintStream(new Frames(reply, OUT), true);
+                            PrintStream err = new PrintStream(new Frames(reply, ERR), true)) {
+                        builder.build(args, out, err, colors, monitor::disconnected);
+                    } finally {
+                        monitor.finish();
+                    }
+                    reply.writeByte(EXIT);
+                    reply.flush();
+                } catch (IOException e) {
+                    System.out.println("Client disconnected: " + e);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    /**
+     * Watches for a client disconnecting while its build is executing,
+     * and interrupts the build's thread if it does
+     */
+    private static final class Monitor extends Thread {
+        private final SocketChannel client;
+        private final Thread build;
+        private boolean finished, disconnected;
+
+        Monitor(SocketChannel client, Thread build) {
+            super("Build client monitor");
+            this.client = client;
+            this.build = build;
+            setDaemon(true);
+            start();
+        }
+
+        @Override public void run() {
+            // the client sends nothing after its request, so a read only returns when it disconnects
+            ByteBuffer buffer = ByteBuffer.allocate(64);
+            try {
+                while (client.read(buffer.clear()) >= 0);
+            } catch (IOException e) {
+                // the connection was closed
+            }
+            synchronized (this) {
+                if (!finished) {
+                    disconnected = true;
+                    build.interrupt();
+                }
+            }
+        }
+
+        synchronized boolean disconnected() {
+            return disconnected;
+        }
+
+        /**
+         * Stops interrupting the build's thread, and clears its interrupted status
+         */
+        void finish() {
+            synchronized (this) {
+                finished = true;
+            }
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * An output stream which writes data to a client in frames of a given type
+     */
+    private static final class Frames extends OutputStream {
+        private final DataOutputStream reply;
+        private final byte type;
+
+        Frames(DataOutputStream reply, byte type) {
+            this.reply = reply;
+            this.type = type;
+        }
+
+        @Override public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (reply) {
+                reply.writeByte(type);
+                reply.writeInt(len);
+                reply.write(b, off, len);
+            }
+        }
+
+        @Override public void flush() throws IOException {
+            synchronized (reply) {
+                reply.flush();
+            }
+        }
+
+        @Override public void close() {
+            // the reply stream is closed with the connection
+        }
+    }
+}
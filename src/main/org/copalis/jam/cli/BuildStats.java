@@ -0,0 +1,138 @@
+package org.copalis.jam.cli;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.copalis.jam.memo.Observer;
+
+/**
+ * Runtime metrics of the memoized method calls made during a build, aggregated by method name.
+ * <p>
+ * The time and memory used by a call are measured on the thread that made it.
+ * The self time of a method excludes the time spent in memoized calls it made on the same thread,
+ * but includes the time it spent waiting for calls made on other threads.
+ *
+ * @author gilesjb
+ */
+public final class BuildStats {
+
+    /**
+     * The metrics of a method
+     * @param name the method name
+     * @param hits the number of calls which returned a cached result
+     * @param misses the number of calls which were executed because there was no cached result
+     * @param refreshes the number of calls which were executed because the cached result was stale
+     * @param wallNanos the total elapsed time of the calls, in nanoseconds
+     * @param selfNanos the total elapsed time of the calls excluding the memoized calls they made,
+     * in nanoseconds
+     * @param allocatedBytes the total number of bytes allocated by the calls,
+     * or 0 if the JVM does not measure allocation
+     */
+    public record MethodStats(String name, long hits, long misses, long refreshes,
+            long wallNanos, long selfNanos, long allocatedBytes) {
+
+        /**
+         * Gets the total number of calls
+         * @return the number of calls
+         */
+        public long calls() {
+            return hits + misses + refreshes;
+        }
+    }
+
+    private static final class Counters {
+        long hits, misses, refreshes, wall, self, allocated;
+    }
+
+    private static final class Frame {
+        final List<Object> params;
+        final long start = System.nanoTime(), allocation = allocatedBytes();
+        long children;
+
+        Frame(List<Object> params) {
+            this.params = params;
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean threads = allocationBean();
+
+    private final Map<String, Counters> counters = new ConcurrentHashMap<>();
+    private final ThreadLocal<Deque<Frame>> frames = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        return ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled() ? bean : null;
+    }
+
+    private static long allocatedBytes() {
+        return Objects.isNull(threads) ? 0 : threads.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Records the start of a method call
+     * @param status the cache status of the call
+     * @param method the method
+     * @param params the parameters of the call
+     */
+    void start(Observer.Status status, Method method, List<Object> params) {
+        Counters c = counters.computeIfAbsent(method.getName(), k -> new Counters());
+        synchronized (c) {
+            switch (status) {
+            case CURRENT: c.hits++; break;
+            case COMPUTE: c.misses++; break;
+            case REFRESH: c.refreshes++; break;
+            }
+        }
+        frames.get().push(new Frame(params));
+    }
+
+    /**
+     * Records the end of a method call
+     * @param method the method
+     * @param params the parameters of the call, which must be the same object passed to
+     * {@link #start(Observer.Status, Method, List)}
+     */
+    void end(Method method, List<Object> params) {
+        Deque<Frame> stack = frames.get();
+        Frame frame;
+        do {
+            frame = stack.poll(); // also discards the frames of nested calls which threw exceptions
+        } while (Objects.nonNull(frame) && frame.params != params);
+        if (Objects.isNull(frame)) return;
+
+        long wall = System.nanoTime() - frame.start, allocated = allocatedBytes() - frame.allocation;
+        Frame parent = stack.peek();
+        if (Objects.nonNull(parent)) parent.children += wall;
+
+        Counters c = counters.get(method.getName());
+        synchronized (c) {
+            c.wall += wall;
+            c.self += wall - frame.children;
+            c.allocated += allocated;
+        }
+    }
+
+    /**
+     * Gets the metrics of the methods which have been called
+     * @return a list of method metrics, in descending order of self time
+     */
+    public List<MethodStats> methods() {
+        return counters.entrySet().stream()
+                .map(e -> {
+                    Counters c = e.getValue();
+                    synchronized (c) {
+                        return new MethodStats(e.getKey(), c.hits, c.misses, c.refreshes, c.wall, c.self, c.allocated);
+                    }
+                })
+                .sorted(Comparator.comparingLong(MethodStats::selfNanos).reversed()
+                        .thenComparing(MethodStats::name))
+                .toList();
+    }
+}
@@ -0,0 +1,856 @@
+package org.copalis.jam.memo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * The binary format used by {@link Memorizer} to save and load its cache.
+ * <p>
+ * The format is a versioned stream of tagged values.
+ * Strings are written once and subsequently referenced by index,
+ * and objects are written once and subsequently referenced by handle,
+ * so that the identity of {@link Mutable} objects shared between cache entries is preserved.
+ * <p>
+ * The cache starts with a header containing the states of mutable objects, the signatures of
+ * the cached method calls and the calls made at the start of recent builds, followed by an index of the results.
+ * Each result is encoded separately, referring only to strings and objects in the header,
+ * so that it can be decoded without decoding any other result.
+ * <p>
+ * Changes made to a cache after it was saved can be appended to a journal.
+ * Each journal record is self-contained and protected by a checksum,
+ * so that a journal which was cut short by a crash can be read up to its last complete record.
+ * <p>
+ * {@link Invocation}, {@link Result}, strings, boxed primitives and the common {@code java.util} collection
+ * classes are encoded directly.
+ * Other types can be encoded compactly by registering a {@link Codec};
+ * values of any remaining types are encoded with Java serialization.
+ *
+ * @author gilesjb
+ */
+public final class CacheFormat {
+    private CacheFormat() { }
+
+    private static final int MAGIC = 0x4a414d00; // "JAM\0"
+    private static final int JOURNAL_MAGIC = 0x4a414d4a; // "JAMJ"
+
+    /**
+     * The version of the cache format
+     */
+    public static final int VERSION = 4;
+
+    private static final int
+        NULL = 0,
+        HANDLE = 1,
+        STRING = 2,
+        INTEGER = 3,
+        LONG = 4,
+        BOOLEAN = 5,
+        DOUBLE = 6,
+        ARRAY_LIST = 7,
+        LINKED_LIST = 8,
+        HASH_SET = 9,
+        LINKED_HASH_SET = 10,
+        HASH_MAP = 11,
+        LINKED_HASH_MAP = 12,
+        INVOCATION = 13,
+        RESULT = 14,
+        CHANGED = 15,
+        CODEC = 16,
+        SERIALIZED = 17;
+
+    private static final int
+        PUT = 1,
+        REMOVE = 2,
+        CLEAR = 3,
+        BUILD = 4,
+        ROOT = 5;
+
+    private static final String RELOCATED = "\0"; // marks a directory relative to the base of a relocatable value
+
+    private static final Map<Class<?>, Integer> collections = Map.of(
+            ArrayList.class, ARRAY_LIST,
+            LinkedList.class, LINKED_LIST,
+            HashSet.class, HASH_SET,
+            LinkedHashSet.class, LINKED_HASH_SET,
+            HashMap.class, HASH_MAP,
+            LinkedHashMap.class, LINKED_HASH_MAP);
+
+    /**
+     * Converts objects of a specific type to and from the cache format
+     * @param <T> the type of object
+     */
+    public interface Codec<T> {
+        /**
+         * Writes an object
+         * @param value the object, which is not null
+         * @param out the output
+         * @throws IOException if an IO exception occurs
+         */
+        void write(T value, Output out) throws IOException;
+
+        /**
+         * Reads an object
+         * @param in the input
+         * @return the object
+         * @throws IOException if an IO exception occurs
+         */
+        T read(Input in) throws IOException;
+    }
+
+    private static final Map<String, Codec<?>> codecs = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a codec for a type.
+     * A class that registers itself should do so in a static initializer,
+     * because the class will be initialized when an instance of it is read.
+     * @param <T> the type
+     * @param type the class, which must match the class of the encoded objects exactly
+     * @param codec the codec
+     */
+    public static <T> void register(Class<T> type, Codec<T> codec) {
+        codecs.put(type.getName(), codec);
+    }
+
+    private static Codec<?> codec(String type) {
+        Codec<?> codec = codecs.get(type);
+        if (Objects.isNull(codec)) {
+            try {
+                Class.forName(type, true, CacheFormat.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+            codec = codecs.get(type);
+        }
+        return codec;
+    }
+
+    /**
+     * The contents of a cache.
+     * The states and signatures are read when the cache is loaded,
+     * and each method call result is decoded when it is requested.
+     */
+    static final class Contents {
+        final Map<Mutable, Serializable> states = new IdentityHashMap<>();
+        final List<Invocation> signatures = new ArrayList<>();
+        final List<List<Invocation>> builds = new ArrayList<>();
+        private final Input header;
+        private final int[] offsets;
+
+        @SuppressWarnings("unchecked")
+        Contents(ByteBuffer buffer) throws IOException {
+            try {
+                if (buffer.getInt() != MAGIC) {
+                    throw new StreamCorruptedException("Not a cache file");
+                }
+                int version = buffer.getInt();
+                if (version != VERSION) {
+                    throw new StreamCorruptedException("Unsupported cache format version " + version);
+                }
+                header = new Input(buffer, null);
+                for (int i = header.readInt(); i > 0; i--) {
+                    states.put((Mutable) header.readObject(), (Serializable) header.readObject());
+                }
+                for (int i = header.readInt(); i > 0; i--) {
+                    signatures.add((Invocation) header.readObject());
+                }
+                for (int i = header.readInt(); i > 0; i--) {
+                    builds.add((List<Invocation>) (List<?>) header.readAll(new ArrayList<>()));
+                }
+                offsets = new int[signatures.size() + 1];
+                offsets[0] = buffer.position() + Integer.BYTES * signatures.size();
+                for (int i = 0; i < signatures.size(); i++) {
+                    offsets[i + 1] = offsets[i] + buffer.getInt();
+                }
+                if (offsets[signatures.size()] != buffer.limit()) {
+                    throw new StreamCorruptedException("Truncated cache file");
+                }
+            } catch (BufferUnderflowException | ClassCastException e) {
+                throw new StreamCorruptedException("Invalid cache file");
+            }
+        }
+
+        /**
+         * Decodes the result of a method call.
+         * Results can be decoded concurrently and in any order.
+         * @param index the index of the method call's signature
+         * @return the result
+         * @throws IOException if the result cannot be decoded
+         */
+        @SuppressWarnings("unchecked")
+        Result result(int index) throws IOException {
+            Input in = new Input(header.buffer.duplicate().position(offsets[index]).limit(offsets[index + 1]), header);
+            try {
+                return new Result(signatures.get(index), in.readObject(),
+                        (Set<Mutable>) (Set<?>) in.readAll(new HashSet<>()),
+                        (List<Invocation>) (List<?>) in.readAll(new ArrayList<>()));
+            } catch (BufferUnderflowException e) {
+                throw new StreamCorruptedException("Invalid cache entry");
+            }
+        }
+    }
+
+    /**
+     * Writes a cache
+     * @param stream the output stream
+     * @param states the states of mutable objects
+     * @param results the method call results
+     * @param builds the method calls made at the start of each recent build, oldest first
+     * @throws IOException if an IO exception occurs
+     */
+    static void write(OutputStream stream, Map<Mutable, Serializable> states, List<Result> results,
+            List<? extends Collection<Invocation>> builds) throws IOException {
+        Output header = new Output(null);
+        header.writeInt(states.size());
+        for (Map.Entry<Mutable, Serializable> entry : states.entrySet()) {
+            header.writeObject(entry.getKey());
+            header.writeObject(entry.getValue());
+        }
+        header.writeInt(results.size());
+        for (Result result : results) {
+            header.writeObject(result.signature());
+        }
+        header.writeInt(builds.size());
+        for (Collection<Invocation> roots : builds) {
+            header.writeAll(roots);
+        }
+
+        Output body = new Output(header);
+        int[] lengths = new int[results.size()];
+        for (int i = 0; i < lengths.length; i++) {
+            int start = body.bytes.size();
+            Result result = results.get(i);
+            body.writeObject(result.value());
+            body.writeAll(result.dependencies());
+            body.writeAll(result.calls());
+            body.forgetLocal();
+            lengths[i] = body.bytes.size() - start;
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        header.bytes.writeTo(out);
+        for (int length : lengths) {
+            out.writeInt(length);
+        }
+        body.bytes.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Reads a cache
+     * @param stream the input stream
+     * @return the cache contents, whose results have not yet been decoded
+     * @throws IOException if an IO exception occurs
+     */
+    static Contents read(InputStream stream) throws IOException {
+        return new Contents(ByteBuffer.wrap(stream.readAllBytes()));
+    }
+
+    /**
+     * Encodes a value so that it can be decoded in a different location.
+     * Absolute paths written by {@link Output#writePath(String)} which are inside the base directory
+     * are written relative to it.
+     * @param value the value
+     * @param base the base directory
+     * @return the encoded value
+     * @throws IOException if the value cannot be encoded
+     */
+    public static byte[] encode(Object value, Path base) throws IOException {
+        Output out = new Output(null);
+        out.base = base.toAbsolutePath();
+        out.writeObject(value);
+        return out.bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a value encoded by {@link #encode(Object, Path)}
+     * @param bytes the encoded value
+     * @param base the base directory that relative paths are resolved against
+     * @return the value
+     * @throws IOException if the value cannot be decoded
+     */
+    public static Object decode(byte[] bytes, Path base) throws IOException {
+        Input in = new Input(ByteBuffer.wrap(bytes), null);
+        in.base = base.toAbsolutePath();
+        try {
+            return in.readObject();
+        } catch (BufferUnderflowException | ClassCastException e) {
+            throw new StreamCorruptedException("Invalid value");
+        }
+    }
+
+    private static Path relocatable(Path base, Path path) {
+        Path normal = path.normalize();
+        return normal.isAbsolute() && normal.startsWith(base) && !normal.equals(base) ? base.relativize(normal) : null;
+    }
+
+    /**
+     * A change to a cache
+     * @param type the type of change
+     * @param signature the signature of the method call whose result was added or removed,
+     * or which was made at the start of the current build
+     * @param result the result which was added
+     * @param states the states of the mutable objects referenced by the added result
+     */
+    record Change(Type type, Invocation signature, Result result, Map<Mutable, Serializable> states) {
+
+        /**
+         * The types of change
+         */
+        enum Type {
+            /** A result was added */
+            PUT,
+            /** A result was removed */
+            REMOVE,
+            /** All results were removed */
+            CLEAR,
+            /** A new build started */
+            BUILD,
+            /** A method call was made at the start of the current build */
+            ROOT
+        }
+
+        static Change put(Result result, Map<Mutable, Serializable> states) {
+            return new Change(Type.PUT, result.signature(), result, states);
+        }
+
+        static Change remove(Invocation signature) {
+            return new Change(Type.REMOVE, signature, null, Map.of());
+        }
+
+        static Change clear() {
+            return new Change(Type.CLEAR, null, null, Map.of());
+        }
+
+        static Change build() {
+            return new Change(Type.BUILD, null, null, Map.of());
+        }
+
+        static Change root(Invocation signature) {
+            return new Change(Type.ROOT, signature, null, Map.of());
+        }
+    }
+
+    /**
+     * The contents of a journal
+     * @param changes the changes recorded in the journal, in the order they were made
+     * @param complete false if the journal ends with an incomplete or corrupt record
+     */
+    record Journal(List<Change> changes, boolean complete) { }
+
+    /**
+     * Writes the header of a new journal
+     * @param stream the output stream
+     * @throws IOException if an IO exception occurs
+     */
+    static void writeJournalHeader(OutputStream stream) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES).putInt(JOURNAL_MAGIC).putInt(VERSION);
+        stream.write(header.array());
+    }
+
+    /**
+     * Encodes a journal record
+     * @param change the change to the cache
+     * @return the record, which should be appended to the journal with a single write
+     * @throws IOException if the change cannot be encoded
+     */
+    static byte[] journalRecord(Change change) throws IOException {
+        Output out = new Output(null);
+        out.data.writeInt(0);
+        out.data.writeLong(0);
+        switch (change.type()) {
+        case CLEAR:
+            out.writeInt(CLEAR);
+            break;
+        case BUILD:
+            out.writeInt(BUILD);
+            break;
+        case REMOVE:
+            out.writeInt(REMOVE);
+            out.writeObject(change.signature());
+            break;
+        case ROOT:
+            out.writeInt(ROOT);
+            out.writeObject(change.signature());
+            break;
+        case PUT:
+            out.writeInt(PUT);
+            out.writeInt(change.states().size());
+            for (Map.Entry<Mutable, Serializable> entry : change.states().entrySet()) {
+                out.writeObject(entry.getKey());
+                out.writeObject(entry.getValue());
+            }
+            out.writeObject(change.result());
+            break;
+        }
+
+        ByteBuffer record = ByteBuffer.wrap(out.bytes.toByteArray());
+        int length = record.capacity() - Integer.BYTES - Long.BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), Integer.BYTES + Long.BYTES, length);
+        record.putInt(length).putLong(crc.getValue());
+        return record.array();
+    }
+
+    /**
+     * Reads a journal
+     * @param stream the input stream
+     * @return the changes recorded in the journal
+     * @throws IOException if an IO exception occurs or the journal is not in a supported format
+     */
+    @SuppressWarnings("unchecked")
+    static Journal readJournal(InputStream stream) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(stream.readAllBytes());
+        if (buffer.remaining() < 2 * Integer.BYTES || buffer.getInt() != JOURNAL_MAGIC) {
+            throw new StreamCorruptedException("Not a journal file");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported journal format version " + version);
+        }
+
+        List<Change> changes = new ArrayList<>();
+        while (buffer.remaining() >= Integer.BYTES + Long.BYTES) {
+            int length = buffer.getInt();
+            long checksum = buffer.getLong();
+            if (length < 0 || length > buffer.remaining()) break;
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), buffer.position(), length);
+            if (crc.getValue() != checksum) break;
+
+            Input in = new Input(buffer.slice(buffer.position(), length), null);
+            buffer.position(buffer.position() + length);
+            try {
+                switch (in.readInt()) {
+                case CLEAR:
+                    changes.add(Change.clear());
+                    break;
+                case BUILD:
+                    changes.add(Change.build());
+                    break;
+                case REMOVE:
+                    changes.add(Change.remove((Invocation) in.readObject()));
+                    break;
+                case ROOT:
+                    changes.add(Change.root((Invocation) in.readObject()));
+                    break;
+                case PUT:
+                    Map<Mutable, Serializable> states = new IdentityHashMap<>();
+                    for (int i = in.readInt(); i > 0; i--) {
+                        states.put((Mutable) in.readObject(), (Serializable) in.readObject());
+                    }
+                    Result result = (Result) in.readObject();
+                    changes.add(Change.put(result, states));
+                    break;
+                default:
+                    throw new StreamCorruptedException("Invalid journal record");
+                }
+            } catch (BufferUnderflowException | ClassCastException e) {
+                throw new StreamCorruptedException("Invalid journal record");
+            }
+        }
+        return new Journal(changes, !buffer.hasRemaining());
+    }
+
+    /**
+     * A stream that values are written to
+     */
+    public static final class Output {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream data = new DataOutputStream(bytes);
+        private final Output shared;
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final Map<Object, Integer> handles = new IdentityHashMap<>();
+        private Path base;
+
+        /**
+         * Creates an output
+         * @param shared an output whose strings and objects can be referenced by this output, or null
+         */
+        Output(Output shared) {
+            this.shared = shared;
+        }
+
+        private int stringBase() {
+            return Objects.isNull(shared) ? 2 : shared.stringBase() + shared.strings.size();
+        }
+
+        private int handleBase() {
+            return Objects.isNull(shared) ? 0 : shared.handleBase() + shared.handles.size();
+        }
+
+        private Integer string(String value) {
+            Integer index = Objects.isNull(shared) ? null : shared.string(value);
+            return Objects.nonNull(index) ? index : strings.get(value);
+        }
+
+        private Integer handle(Object value) {
+            Integer index = Objects.isNull(shared) ? null : shared.handle(value);
+            return Objects.nonNull(index) ? index : handles.get(value);
+        }
+
+        /**
+         * Forgets the strings and objects written by this output but not by the shared output,
+         * so that subsequent values can be decoded independently of earlier ones
+         */
+        void forgetLocal() {
+            strings.clear();
+            handles.clear();
+        }
+
+        /**
+         * Writes a non-negative integer
+         * @param value the integer
+         * @throws IOException if an IO exception occurs
+         */
+        public void writeInt(int value) throws IOException {
+            while ((value & ~0x7f) != 0) {
+                data.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data.writeByte(value);
+        }
+
+        /**
+         * Writes a long integer
+         * @param value the long integer
+         * @throws IOException if an IO exception occurs
+         */
+        public void writeLong(long value) throws IOException {
+            data.writeLong(value);
+        }
+
+        /**
+         * Writes a string, which may be null.
+         * Each distinct string is only written once.
+         * @param value the string
+         * @throws IOException if an IO exception occurs
+         */
+        public void writeString(String value) throws IOException {
+            if (Objects.isNull(value)) {
+                writeInt(0);
+                return;
+            }
+            Integer index = string(value);
+            if (Objects.nonNull(index)) {
+                writeInt(index);
+            } else {
+                strings.put(value, stringBase() + strings.size());
+                writeInt(1);
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeInt(bytes.length);
+                data.write(bytes);
+            }
+        }
+
+        /**
+         * Writes a file path, which may be null.
+         * Each distinct directory name is only written once.
+         * @param path the path
+         * @throws IOException if an IO exception occurs
+         */
+        public void writePath(String path) throws IOException {
+            Path relative = Objects.isNull(base) || Objects.isNull(path) ? null : relocatable(base, Path.of(path));
+            if (Objects.nonNull(relative)) {
+                Path dir = relative.getParent();
+                writeString(RELOCATED + (Objects.isNull(dir) ? "" : dir.toString()));
+                writeString(relative.getFileName().toString());
+                return;
+            }
+            int split = Objects.isNull(path) ? -1 : path.lastIndexOf(java.io.File.separatorChar);
+            if (split < 0) {
+                writeString(null);
+                writeString(path);
+            } else {
+                writeString(path.substring(0, split));
+                writeString(path.substring(split + 1));
+            }
+        }
+
+        /**
+         * Writes an object, which may be null.
+         * Each distinct object is only written once.
+         * @param value the object
+         * @throws IOException if an IO exception occurs
+         */
+        public void writeObject(Object value) throws IOException {
+            if (Objects.isNull(value)) {
+                data.writeByte(NULL);
+            } else if (value instanceof String str) {
+                data.writeByte(STRING);
+                writeString(str);
+            } else if (value instanceof Integer i) {
+                data.writeByte(INTEGER);
+                data.writeInt(i);
+            } else if (value instanceof Long l) {
+                data.writeByte(LONG);
+                data.writeLong(l);
+            } else if (value instanceof Boolean b) {
+                data.writeByte(BOOLEAN);
+                data.writeBoolean(b);
+            } else if (value instanceof Double d) {
+                data.writeByte(DOUBLE);
+                data.writeDouble(d);
+            } else if (value == Mutable.CHANGED) {
+                data.writeByte(CHANGED);
+            } else {
+                Integer handle = handle(value);
+                if (Objects.nonNull(handle)) {
+                    data.writeByte(HANDLE);
+                    writeInt(handle);
+                } else {
+                    handles.put(value, handleBase() + handles.size());
+                    writeNew(value);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void writeNew(Object value) throws IOException {
+            Codec<Object> codec = (Codec<Object>) codecs.get(value.getClass().getName());
+            Integer collection = collections.get(value.getClass());
+
+            if (value instanceof Invocation inv) {
+                data.writeByte(INVOCATION);
+                writeString(inv.name());
+                writeAll(inv.params());
+            } else if (value instanceof Result res) {
+                data.writeByte(RESULT);
+                writeObject(res.signature());
+                writeObject(res.value());
+                writeAll(res.dependencies());
+                writeAll(res.calls());
+            } else if (Objects.nonNull(codec)) {
+                data.writeByte(CODEC);
+                writeString(value.getClass().getName());
+                codec.write(value, this);
+            } else if (value instanceof Collection<?> values && Objects.nonNull(collection)) {
+                data.writeByte(collection);
+                writeAll(values);
+            } else if (value instanceof Map<?, ?> map && Objects.nonNull(collection)) {
+                data.writeByte(collection);
+                writeInt(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeObject(entry.getKey());
+                    writeObject(entry.getValue());
+                }
+            } else {
+                data.writeByte(SERIALIZED);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream obj = new ObjectOutputStream(bytes)) {
+                    obj.writeObject(value);
+                }
+                writeInt(bytes.size());
+                bytes.writeTo(data);
+            }
+        }
+
+        private void writeAll(Collection<?> values) throws IOException {
+            writeInt(values.size());
+            for (Object value : values) {
+                writeObject(value);
+            }
+        }
+    }
+
+    /**
+     * A stream that values are read from
+     */
+    public static final class Input {
+        final ByteBuffer buffer;
+        private final Input shared;
+        private final List<String> strings = new ArrayList<>();
+        private final List<Object> handles = new ArrayList<>();
+        private Path base;
+
+        /**
+         * Creates an input
+         * @param buffer the buffer to read from
+         * @param shared an input whose strings and objects can be referenced by this input, or null
+         */
+        Input(ByteBuffer buffer, Input shared) {
+            this.buffer = buffer;
+            this.shared = shared;
+        }
+
+        private int stringBase() {
+            return Objects.isNull(shared) ? 2 : shared.stringBase() + shared.strings.size();
+        }
+
+        private int handleBase() {
+            return Objects.isNull(shared) ? 0 : shared.handleBase() + shared.handles.size();
+        }
+
+        private String string(int index) {
+            int base = stringBase();
+            return index >= base ? strings.get(index - base) : shared.string(index);
+        }
+
+        private Object handle(int index) {
+            int base = handleBase();
+            return index >= base ? handles.get(index - base) : shared.handle(index);
+        }
+
+        /**
+         * Reads a non-negative integer
+         * @return the integer
+         * @throws IOException if an IO exception occurs
+         */
+        public int readInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = buffer.get();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+        }
+
+        /**
+         * Reads a long integer
+         * @return the long integer
+         * @throws IOException if an IO exception occurs
+         */
+        public long readLong() throws IOException {
+            return buffer.getLong();
+        }
+
+        /**
+         * Reads a string
+         * @return the string, or null
+         * @throws IOException if an IO exception occurs
+         */
+        public String readString() throws IOException {
+            int index = readInt();
+            if (index == 0) return null;
+            if (index > 1) return string(index);
+            byte[] bytes = new byte[readInt()];
+            buffer.get(bytes);
+            String value = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(value);
+            return value;
+        }
+
+        /**
+         * Reads a file path
+         * @return the path, or null
+         * @throws IOException if an IO exception occurs
+         */
+        public String readPath() throws IOException {
+            String dir = readString(), name = readString();
+            if (Objects.nonNull(dir) && dir.startsWith(RELOCATED)) {
+                Path relative = Path.of(dir.substring(RELOCATED.length()), name);
+                return (Objects.isNull(base) ? relative : base.resolve(relative)).toString();
+            }
+            return Objects.isNull(dir) ? name : dir + java.io.File.separatorChar + name;
+        }
+
+        /**
+         * Reads an object
+         * @return the object, or null
+         * @throws IOException if an IO exception occurs
+         */
+        public Object readObject() throws IOException {
+            int tag = buffer.get();
+            switch (tag) {
+            case NULL: return null;
+            case STRING: return readString();
+            case INTEGER: return buffer.getInt();
+            case LONG: return buffer.getLong();
+            case BOOLEAN: return buffer.get() != 0;
+            case DOUBLE: return buffer.getDouble();
+            case CHANGED: return Mutable.CHANGED;
+            case HANDLE: return handle(readInt());
+            }
+
+            int handle = handles.size();
+            handles.add(null);
+            Object value = readNew(tag);
+            handles.set(handle, value);
+            return value;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object readNew(int tag) throws IOException {
+            switch (tag) {
+            case INVOCATION:
+                return new Invocation(readString(), readAll(new ArrayList<>()));
+            case RESULT:
+                return new Result((Invocation) readObject(), readObject(),
+                        (Set<Mutable>) (Set<?>) readAll(new HashSet<>()),
+                        (List<Invocation>) (List<?>) readAll(new ArrayList<>()));
+            case CODEC:
+                String type = readString();
+                Codec<?> codec = codec(type);
+                if (Objects.isNull(codec)) {
+                    throw new StreamCorruptedException("No codec for " + type);
+                }
+                return codec.read(this);
+            case ARRAY_LIST:
+                return readAll(new ArrayList<>());
+            case LINKED_LIST:
+                return readAll(new LinkedList<>());
+            case HASH_SET:
+                return readAll(new HashSet<>());
+            case LINKED_HASH_SET:
+                return readAll(new LinkedHashSet<>());
+            case HASH_MAP:
+                return readAll(new HashMap<>());
+            case LINKED_HASH_MAP:
+                return readAll(new LinkedHashMap<>());
+            case SERIALIZED:
+                byte[] bytes = new byte[readInt()];
+                buffer.get(bytes);
+                try (ObjectInputStream obj = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return obj.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+            default:
+                throw new StreamCorruptedException("Invalid tag " + tag);
+            }
+        }
+
+        private <C extends Collection<Object>> C readAll(C values) throws IOException {
+            for (int i = readInt(); i > 0; i--) {
+                values.add(readObject());
+            }
+            return values;
+        }
+
+        private Map<Object, Object> readAll(Map<Object, Object> map) throws IOException {
+            for (int i = readInt(); i > 0; i--) {
+                map.put(readObject(), readObject());
+            }
+            return map;
+        }
+    }
+}
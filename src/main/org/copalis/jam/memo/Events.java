@@ -0,0 +1,82 @@
+package org.copalis.jam.memo;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events emitted by {@link Memorizer}.
+ * <p>
+ * The events are disabled by default, and can be enabled by name in a recording's settings, for example
+ * <pre>
+ * java -XX:StartFlightRecording:filename=build.jfr,+org.copalis.jam.Call#enabled=true ...
+ * </pre>
+ * A disabled event costs no more than checking whether it is enabled.
+ *
+ * @author gilesjb
+ */
+final class Events {
+    private Events() { }
+
+    /**
+     * A memoized method call
+     */
+    @Name("org.copalis.jam.Call")
+    @Label("Memoized Call")
+    @Category("Jam")
+    @Description("A call of a memoized method, including the time taken to look up or compute its result")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Call extends Event {
+        @Label("Method") String method;
+        @Label("Status") String status;
+        @Label("Dependencies") int dependencies;
+    }
+
+    /**
+     * A check of whether a cached result is current
+     */
+    @Name("org.copalis.jam.StalenessCheck")
+    @Label("Staleness Check")
+    @Category("Jam")
+    @Description("A check of whether a cached result is up to date with the mutable objects it depends on")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class StalenessCheck extends Event {
+        @Label("Method") String method;
+        @Label("Dependencies") int dependencies;
+        @Label("Current") boolean current;
+    }
+
+    /**
+     * A determination of the current state of a mutable object
+     */
+    @Name("org.copalis.jam.Probe")
+    @Label("State Probe")
+    @Category("Jam")
+    @Description("A call of Mutable.currentState to determine whether a resource has been modified")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Probe extends Event {
+        @Label("Type") Class<?> type;
+        @Label("Object") String object;
+    }
+
+    /**
+     * A cache loading or saving phase
+     */
+    @Name("org.copalis.jam.Cache")
+    @Label("Cache Operation")
+    @Category("Jam")
+    @Description("Loading, replaying, decoding or saving the contents of a cache")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Cache extends Event {
+        @Label("Operation") String operation;
+        @Label("Entries") int entries;
+    }
+}
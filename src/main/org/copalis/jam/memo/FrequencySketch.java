@@ -0,0 +1,84 @@
+package org.copalis.jam.memo;
+
+/**
+ * An approximate count of how often keys have been used recently,
+ * stored in a count-min sketch of 4-bit counters which are halved periodically so that old uses are forgotten.
+ * <p>
+ * This is the frequency filter of the TinyLFU cache admission policy.
+ *
+ * @author gilesjb
+ */
+final class FrequencySketch {
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private long[] table;
+    private int sampleSize;
+    private int additions;
+
+    /**
+     * Creates a sketch
+     * @param expected the expected number of distinct keys in the cache
+     */
+    FrequencySketch(long expected) {
+        resize(expected);
+    }
+
+    /**
+     * Enlarges the sketch if the cache holds more keys than it was sized for.
+     * The counts recorded so far are discarded when the sketch is enlarged.
+     * @param expected the number of distinct keys in the cache
+     */
+    synchronized void ensureCapacity(long expected) {
+        if (expected > table.length * 4L && table.length * 4L < 1 << 24) resize(expected);
+    }
+
+    private void resize(long expected) {
+        int size = Integer.highestOneBit((int) Math.max(16, Math.min(expected, 1 << 24)) - 1) << 1;
+        table = new long[size / 4];
+        sampleSize = 10 * size;
+        additions = 0;
+    }
+
+    private static int spread(int hash, int i) {
+        hash = (hash + i) * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Records a use of a key
+     * @param key the key
+     */
+    synchronized void increment(Object key) {
+        int hash = key.hashCode();
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int h = spread(hash, i);
+            int index = (h >>> 4) & (table.length - 1), shift = ((h & 3) << 2) + (i << 4);
+            if (((table[index] >>> shift) & 0xf) < 15) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+    }
+
+    /**
+     * Estimates how often a key has been used recently
+     * @param key the key
+     * @return the estimated number of uses, from 0 to 15
+     */
+    synchronized int frequency(Object key) {
+        int hash = key.hashCode(), frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            int h = spread(hash, i);
+            int index = (h >>> 4) & (table.length - 1), shift = ((h & 3) << 2) + (i << 4);
+            frequency = Math.min(frequency, (int) ((table[index] >>> shift) & 0xf));
+        }
+        return frequency;
+    }
+}
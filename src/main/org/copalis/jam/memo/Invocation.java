@@ -3,12 +3,14 @@ package org.copalis.jam.memo;
 import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.lang.reflect.Method;
+import java.util.AbstractList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -23,22 +25,77 @@ public record Invocation(String name, List<Object> params) implements Mutable {
      * @param params the parameters passed in the method call
      */
     public Invocation(Method method, Object... params) {
-        this(method.getName(), Objects.isNull(params) ? Collections.emptyList()
-                : method.isVarArgs() ? expandVarArgs(params) : Arrays.asList(params));
+        this(method.getName(), params(Objects.isNull(params) ? null : params.clone(), method.isVarArgs()));
     }
 
-    private static List<Object> expandVarArgs(Object[] params) {
-        List<Object> result = new LinkedList<>();
-        for (int i = 0; i < params.length - 1; i++) {
-            result.add(params[i]);
-        }
+    /**
+     * Creates an immutable parameter list
+     * @param args the method call arguments, which must not be modified after this call, or null if there are none
+     * @param varArgs true if the last argument is an array of variable arguments
+     * @return a list of the arguments, with any variable arguments expanded
+     */
+    static List<Object> params(Object[] args, boolean varArgs) {
+        if (Objects.isNull(args) || args.length == 0) return Params.EMPTY;
+        return new Params(varArgs ? expandVarArgs(args) : args);
+    }
+
+    private static Object[] expandVarArgs(Object[] params) {
         Object var = params[params.length - 1];
-        for (int i = 0; i < Array.getLength(var); i++) {
-            result.add(Array.get(var, i));
+        int length = Array.getLength(var);
+        Object[] result = Arrays.copyOf(params, params.length - 1 + length);
+        if (var instanceof Object[] objects) {
+            System.arraycopy(objects, 0, result, params.length - 1, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                result[params.length - 1 + i] = Array.get(var, i);
+            }
         }
         return result;
     }
 
+    /**
+     * An immutable list of method call parameters which caches its hash code
+     */
+    private static final class Params extends AbstractList<Object> implements RandomAccess, Serializable {
+        private static final long serialVersionUID = 1L;
+        static final Params EMPTY = new Params(new Object[0]);
+
+        private final Object[] values;
+        private int hash;
+
+        Params(Object[] values) {
+            this.values = values;
+        }
+
+        @Override public Object get(int index) {
+            return values[index];
+        }
+
+        @Override public int size() {
+            return values.length;
+        }
+
+        @Override public Object[] toArray() {
+            return values.clone();
+        }
+
+        @Override public int hashCode() {
+            int h = hash;
+            if (h == 0) {
+                h = Arrays.hashCode(values);
+                hash = h;
+            }
+            return h;
+        }
+
+        @Override public boolean equals(Object obj) {
+            if (obj instanceof Params other) {
+                return other == this || hashCode() == other.hashCode() && Arrays.equals(values, other.values);
+            }
+            return super.equals(obj);
+        }
+    }
+
     boolean serializable() {
         return params.stream().allMatch(Memorizer::objSerializable);
     }
@@ -49,7 +106,20 @@ public record Invocation(String name, List<Object> params) implements Mutable {
      * @return true if this object is up to date
      */
     public boolean isCurrent(Map<Mutable, Serializable> states) {
-        return params.stream().allMatch(o -> !(o instanceof Mutable m) || Objects.equals(m.currentState(), states.get(m)));
+        return isCurrent(states, Mutable::currentState);
+    }
+
+    /**
+     * Indicates whether this object is up to date with mutable state
+     * @param states a map of mutable states
+     * @param current a function which gets the current state of a mutable object
+     * @return true if this object is up to date
+     */
+    public boolean isCurrent(Map<Mutable, Serializable> states, Function<Mutable, Serializable> current) {
+        for (Object param : params) {
+            if (param instanceof Mutable m && !Objects.equals(current.apply(m), states.get(m))) return false;
+        }
+        return true;
     }
 
     public Serializable currentState() {
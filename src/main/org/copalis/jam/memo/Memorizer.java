@@ -2,23 +2,34 @@ package org.copalis.jam.memo;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 
 /**
@@ -33,8 +44,13 @@ import java.util.stream.Collectors;
  * and its result is stored in the memoizer's cache if it is eligible to be cached
  * </ul>
  * <p>
- * The state of the cache can also be saved and loaded,
+ * The state of the cache can also be saved and loaded in a compact binary {@link CacheFormat},
  * excluding method calls non-{@link java.io.Serializable} parameters or return value.
+ * The results of method calls in a loaded cache are only decoded when those method calls are made.
+ * Changes to the cache can also be recorded in a journal as they are made,
+ * so that saving a cache only costs as much as the changes to it,
+ * and a build which is interrupted does not lose the results it has already computed.
+ * A {@link SharedCache} can be used to reuse results computed by other builds with the same inputs.
  *
  * <h2>Cache eligibility</h2>
  * <ul>
@@ -42,6 +58,12 @@ import java.util.stream.Collectors;
  * <li>Methods with {@code void} return type are not cacheable, and may be used for logic with side-effects
  * </ul>
  *
+ * <h2>Primitive methods</h2>
+ * The results of a method with one or two primitive parameters and a primitive return type
+ * which do not depend on any mutable objects are stored in a {@link PrimitiveTable} for the method
+ * rather than as {@link Result} objects, unless the Memorizer has a bounded {@link Capacity}.
+ * Calls of such methods which are answered by a table are not recorded as calls made by their caller.
+ *
  * <h2>Staleness checking</h2>
  * The method handler performs <i>staleness checking</i> on cached method calls which return or depend on
  * references to mutable resources such as files.
@@ -58,22 +80,179 @@ import java.util.stream.Collectors;
  * </ul>
  *
  * If a cache entry is stale, the method invocation will be executed as though it was not cached.
+ * <p>
+ * The current state of each mutable object is only determined once per build,
+ * where a build starts with a method call made while no other memoized method is executing.
+ * The state is determined again only after a method call returns the object
+ * or a method with {@code void} return type is executed, since either may have modified the resource.
+ *
+ * <h2>Parallel execution</h2>
+ * A Memorizer which is created with an {@link Executor} uses the call tree recorded by a stale cache entry
+ * to start the calls it made last time before the method itself is re-executed.
+ * Only calls whose result cannot depend on the state of the caller are started early,
+ * i.e. calls to methods which have no parameters, or only {@link Mutable} parameters.
+ * When the re-executed method makes those calls it receives the value computed in the background,
+ * or waits for the computation to complete if it is still in progress.
+ * Methods which run concurrently must not interfere with each other's resources.
+ *
+ * <h2>Thread safety</h2>
+ * A memoized instance may be called from multiple threads.
+ * Concurrent calls with the same signature are joined onto a single computation,
+ * whether or not the Memorizer was created with an executor.
+ * <p>
+ * Calls made on the thread which created the memoized instance, or on a thread used to start calls early,
+ * are treated as calls of the memoized method that thread is executing.
+ * Calls made by a task submitted to an {@link #executor(Executor) executor of this memoizer}
+ * are treated as calls of the memoized method which submitted the task.
+ * Calls made on any other thread, for example by a parallel stream inside a memoized method,
+ * cannot be traced to the method that made them, so they are treated as calls of all the methods
+ * which those threads are currently executing, and the dependencies of the calls are always propagated.
  *
  * @author gilesjb
  */
 public class Memorizer {
 
-    private final LinkedList<Set<Mutable>> dependencies = new LinkedList<>();
-    private final Map<Mutable, Serializable> states = new IdentityHashMap<>();
-    private final Map<Invocation, Result> results = new LinkedHashMap<>();
+    /**
+     * The dependencies and nested calls of a method call which is being executed
+     */
+    private static final class Scope {
+        final Invocation signature;
+        final Set<Mutable> dependencies = ConcurrentHashMap.newKeySet();
+        final Set<Invocation> calls = Collections.synchronizedSet(new LinkedHashSet<>());
+        final boolean independent;
+        final boolean cacheable;
+        final List<Scope> origin;
+
+        Scope(Invocation signature, boolean independent, boolean cacheable) {
+            this(signature, independent, cacheable, null);
+        }
+
+        Scope(Invocation signature, boolean independent, boolean cacheable, List<Scope> origin) {
+            this.signature = signature;
+            this.independent = independent;
+            this.cacheable = cacheable;
+            this.origin = origin;
+        }
+
+        List<Invocation> calls() {
+            synchronized (calls) {
+                return List.copyOf(calls);
+            }
+        }
+    }
+
+    /**
+     * Information about a memoized method which is determined when the method is first called
+     * @param method the method
+     * @param varArgs true if the method has variable arguments
+     * @param independent true if all the method's parameters are {@link Mutable},
+     * so that its result does not depend on the state of its caller
+     * @param cacheable true if the method's return type is not {@code void}
+     * @param returnsMutable true if the method's return type is {@link Mutable}
+     * @param table a table of the method's results which do not depend on mutable objects,
+     * or null if the method does not have primitive parameters and return type or the cache is bounded
+     */
+    private record MethodInfo(Method method, boolean varArgs, boolean independent,
+            boolean cacheable, boolean returnsMutable, PrimitiveTable table) {
+
+        MethodInfo(Method method, boolean tables) {
+            this(method, method.isVarArgs(),
+                    Arrays.stream(method.getParameterTypes()).allMatch(Mutable.class::isAssignableFrom),
+                    method.getReturnType() != Void.TYPE,
+                    Mutable.class.isAssignableFrom(method.getReturnType()),
+                    tables ? PrimitiveTable.of(method) : null);
+        }
+    }
+
+    /**
+     * A computation of a method call result, which other threads making the same call can wait for
+     */
+    private static final class Computation extends CompletableFuture<Result> {
+        final Thread thread = Thread.currentThread();
+    }
+
+    private final Map<Method, MethodInfo> methods = new ConcurrentHashMap<>();
+    private final Function<Mutable, Serializable> current = this::currentState;
+    private final ThreadLocal<Deque<Scope>> scopes = ThreadLocal.withInitial(() -> stack(false));
+    private final Map<Thread, Deque<Scope>> executing = new ConcurrentHashMap<>();
+    private final Map<Mutable, Serializable> states = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final Map<Mutable, Serializable> probed = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final Map<Mutable, Serializable> unverified = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final Map<Invocation, Result> results;
+    private final List<Set<Invocation>> builds = Collections.synchronizedList(new ArrayList<>());
+    private final Set<Invocation> roots = Collections.synchronizedSet(new LinkedHashSet<>());
+    private final Map<Mutable, Set<Invocation>> dependents = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final Map<Invocation, Computation> running = new ConcurrentHashMap<>();
+    private final Map<Invocation, Integer> pending = new ConcurrentHashMap<>();
+    private volatile CacheFormat.Contents contents;
+    private volatile boolean modified;
+    private volatile OutputStream journal;
     private final Observer observer;
+    private final Executor executor;
+    private volatile SharedCache shared;
+    private final Capacity capacity;
+    private final FrequencySketch sketch;
+    private final AtomicLong evictions = new AtomicLong();
+    private long weight;
+
+    /**
+     * A limit on the size of the in-memory cache.
+     * <p>
+     * When the total weight of the cached results exceeds the maximum,
+     * the least recently used results are evicted, unless the result being added has been used less often recently
+     * than the result it would replace, in which case the new result is not kept.
+     * Evicted results are not saved, and are computed again if the method call is repeated.
+     *
+     * @param maximum the maximum total weight of the cached results
+     * @param weigher a function which estimates the weight of a result, for example its size in bytes.
+     * It must return the same weight each time it is called with the same result
+     */
+    public record Capacity(long maximum, ToLongFunction<Result> weigher) {
+
+        /**
+         * Creates a limit on the number of cached results
+         * @param maximum the maximum number of results
+         * @return the capacity
+         */
+        public static Capacity entries(long maximum) {
+            return new Capacity(maximum, result -> 1);
+        }
+    }
+
+    /**
+     * Creates an instance with a bounded cache
+     * @param observer an invocation observer, must not be null
+     * @param executor the executor used to start method calls early, or null to execute method calls only when they are made
+     * @param capacity the capacity of the in-memory cache, or null for an unbounded cache
+     */
+    public Memorizer(Observer observer, Executor executor, Capacity capacity) {
+        this.observer = Objects.requireNonNull(observer);
+        this.executor = executor;
+        this.capacity = capacity;
+        if (Objects.isNull(capacity)) {
+            this.results = Collections.synchronizedMap(new LinkedHashMap<>());
+            this.sketch = null;
+        } else {
+            this.results = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true));
+            this.sketch = new FrequencySketch(16); // grows with the number of cached results
+        }
+    }
+
+    /**
+     * Creates an instance which executes methods in parallel
+     * @param observer an invocation observer, must not be null
+     * @param executor the executor used to start method calls early, or null to execute method calls only when they are made
+     */
+    public Memorizer(Observer observer, Executor executor) {
+        this(observer, executor, null);
+    }
 
     /**
      * Creates an instance
      * @param observer an invocation observer, must not be null
      */
     public Memorizer(Observer observer) {
-        this.observer = Objects.requireNonNull(observer);
+        this(observer, null);
     }
 
     /**
@@ -83,42 +262,344 @@ public class Memorizer {
         this(new Observer() { });
     }
 
+    /**
+     * Whether a type of mutable object uses the default implementation of {@link Mutable#modifiedSince},
+     * so that it can be compared using the state determined once per build
+     */
+    private static final ClassValue<Boolean> COMPARES_STATES = new ClassValue<>() {
+        @Override protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("modifiedSince", Serializable.class).getDeclaringClass() == Mutable.class;
+            } catch (NoSuchMethodException e) {
+                return true;
+            }
+        }
+    };
+
     static boolean objSerializable(Object obj) {
         return Objects.isNull(obj) || obj instanceof Serializable;
     }
 
     /**
-     * Loads the cache
-     * @param in an input stream the serialized cache contents will be read from
+     * Loads the cache.
+     * The saved state of each mutable object is only compared with its current state
+     * when a result that refers to the object is first used.
+     * @param in an input stream the cache contents will be read from, in {@link CacheFormat}
+     * @throws IOException if an IO exception occurs or the stream is not in a supported format
+     */
+    public void load(InputStream in) throws IOException {
+        Events.Cache event = new Events.Cache();
+        event.begin();
+        CacheFormat.Contents loaded = CacheFormat.read(in);
+        states.clear();
+        unverified.clear();
+        unverified.putAll(loaded.states);
+        clear();
+        builds.clear();
+        loaded.builds.forEach(build -> builds.add(new LinkedHashSet<>(build)));
+        contents = loaded;
+        for (int i = 0; i < loaded.signatures.size(); i++) {
+            pending.put(loaded.signatures.get(i), i);
+        }
+        modified = false;
+        commit(event, "load", loaded.signatures.size());
+    }
+
+    /**
+     * Applies the changes recorded in a journal to the cache
+     * @param in an input stream the journal will be read from
+     * @return true if the journal was read completely,
+     * or false if it ends with an incomplete record which was ignored
+     * @throws IOException if an IO exception occurs or the stream is not in a supported format
+     */
+    public boolean replay(InputStream in) throws IOException {
+        Events.Cache event = new Events.Cache();
+        event.begin();
+        CacheFormat.Journal loaded = CacheFormat.readJournal(in);
+        for (CacheFormat.Change change : loaded.changes()) {
+            switch (change.type()) {
+            case CLEAR:
+                clear();
+                break;
+            case BUILD:
+                builds.add(new LinkedHashSet<>());
+                break;
+            case ROOT:
+                if (builds.isEmpty()) builds.add(new LinkedHashSet<>());
+                builds.get(builds.size() - 1).add(change.signature());
+                break;
+            case REMOVE:
+                pending.remove(change.signature());
+                discard(change.signature(), null);
+                break;
+            case PUT:
+                pending.remove(change.signature());
+                change.states().forEach((key, value) -> {
+                    states.remove(key);
+                    unverified.put(key, value);
+                });
+                store(change.result(), true);
+                break;
+            }
+        }
+        modified |= !loaded.changes().isEmpty();
+        commit(event, "replay", loaded.changes().size());
+        return loaded.complete();
+    }
+
+    private static void commit(Events.Cache event, String operation, int entries) {
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.entries = entries;
+            event.commit();
+        }
+    }
+
+    /**
+     * Records subsequent changes to the cache in a journal.
+     * Starting a journal starts a new build, so the method calls made at the start of the previous build
+     * are added to the build history
+     * @param out an output stream that changes will be written to, or null to stop recording changes
+     * @param append true if the stream is positioned at the end of an existing journal
      * @throws IOException if an IO exception occurs
-     * @throws ClassNotFoundException if a serialized class cannot be found
-     */
-    @SuppressWarnings("unchecked")
-    public void load(InputStream in) throws IOException, ClassNotFoundException {
-        try (ObjectInputStream obj = new ObjectInputStream(in)) {
-            Map<Mutable, Serializable> loadedStates = (Map<Mutable, Serializable>) obj.readObject();
-            states.clear();
-            loadedStates.forEach((key, value) -> {
-                if (!key.modifiedSince(value)) states.put(key, value);
+     */
+    public void journal(OutputStream out, boolean append) throws IOException {
+        if (Objects.nonNull(out) && !append) {
+            CacheFormat.writeJournalHeader(out);
+        }
+        journal = out;
+        if (Objects.nonNull(out)) {
+            synchronized (roots) {
+                if (!roots.isEmpty()) {
+                    builds.add(new LinkedHashSet<>(roots));
+                    roots.clear();
+                }
+            }
+            record(CacheFormat.Change.build());
+        }
+    }
+
+    /**
+     * Sets the shared cache that is consulted before executing method calls that are not in this memoizer's cache
+     * @param cache the shared cache, or null to stop using a shared cache
+     */
+    public void share(SharedCache cache) {
+        shared = cache;
+    }
+
+    /**
+     * Records a method call made at the start of the current build, i.e. not made by a cached method call
+     * @param signature the method call
+     */
+    private void root(Invocation signature) {
+        if (roots.add(signature)) record(CacheFormat.Change.root(signature));
+    }
+
+    private void record(CacheFormat.Change change) {
+        OutputStream out = journal;
+        if (Objects.isNull(out)) return;
+        try {
+            byte[] record = CacheFormat.journalRecord(change);
+            synchronized (out) {
+                out.write(record);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void recordPut(Result result) {
+        if (Objects.isNull(journal)) return;
+        Result saved = persistable(result);
+        if (Objects.isNull(saved)) return;
+
+        Map<Mutable, Serializable> referenced = new IdentityHashMap<>();
+        for (Mutable m : referenced(saved)) {
+            Serializable state = states.get(m);
+            if (Objects.nonNull(state)) referenced.put(m, state);
+        }
+        record(CacheFormat.Change.put(saved, referenced));
+    }
+
+    /**
+     * Gets the cached result of a method call,
+     * decoding it from the loaded cache if it has not yet been decoded
+     * @param signature the method call
+     * @return the result, or null if there is no cache entry
+     */
+    private Result lookup(Invocation signature) {
+        if (!pending.isEmpty()) {
+            pending.computeIfPresent(signature, (key, index) -> {
+                try {
+                    Events.Cache event = new Events.Cache();
+                    event.begin();
+                    Result result = contents.result(index);
+                    commit(event, "decode", 1);
+                    store(result, false);
+                } catch (IOException e) {
+                    modified = true; // the entry is dropped and will not be saved again
+                }
+                return null;
             });
-            results.clear();
-            ((List<Result>) obj.readObject()).forEach(result -> results.put(result.signature(), result));
         }
+        return results.get(signature);
     }
 
     /**
-     * Writes the contents of the method call cache to an output stream,
+     * Decodes all the results in the loaded cache which have not yet been decoded
+     */
+    private void decodeAll() {
+        pending.keySet().forEach(this::lookup);
+    }
+
+    /**
+     * Gets the number of entries in the cache, including entries which have not been decoded
+     * @return the number of cache entries
+     */
+    public int size() {
+        int size = results.size() + pending.size();
+        for (PrimitiveTable table : tables().values()) {
+            size += table.size();
+        }
+        return size;
+    }
+
+    /**
+     * Checks if the cache has changed since it was created or loaded
+     * @return true if method call results have been added or removed
+     */
+    public boolean modified() {
+        return modified;
+    }
+
+    /**
+     * Writes the contents of the method call cache to an output stream in {@link CacheFormat},
      * excluding method calls which are not serializable.
      *
-     * @param out an output stream the serialized cache contents will be written to
+     * @param out an output stream the cache contents will be written to
      * @throws IOException if an IO exception occurs
      */
     public void save(OutputStream out) throws IOException {
-        try (ObjectOutputStream obj = new ObjectOutputStream(out)) {
-            obj.writeObject(states);
-            obj.writeObject(results.values().stream().filter(Result::serializable)
-                    .collect(Collectors.toList()));
+        Events.Cache event = new Events.Cache();
+        event.begin();
+        decodeAll();
+        Map<Mutable, Serializable> saved;
+        synchronized (unverified) {
+            saved = new IdentityHashMap<>(unverified);
+        }
+        synchronized (states) {
+            saved.putAll(states);
         }
+        List<Result> entries = snapshot().stream()
+                .map(Memorizer::persistable)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        CacheFormat.write(out, saved, entries, recentBuilds(Integer.MAX_VALUE));
+        commit(event, "save", entries.size());
+    }
+
+    /**
+     * Gets the form of a result that can be saved
+     * @param res a result
+     * @return the result without its non-serializable nested calls, or null if the result is not serializable
+     */
+    private static Result persistable(Result res) {
+        if (!res.serializable()) return null;
+        return res.calls().stream().allMatch(Invocation::serializable) ? res
+                : new Result(res.signature(), res.value(), res.dependencies(),
+                        res.calls().stream().filter(Invocation::serializable).toList());
+    }
+
+    /**
+     * Gets the cache entries, including the results in primitive tables
+     * @return a list of results
+     */
+    private List<Result> snapshot() {
+        List<Result> snapshot;
+        synchronized (results) {
+            snapshot = new ArrayList<>(results.values());
+        }
+        tables().forEach((method, table) -> table.forEach((params, value) ->
+                snapshot.add(new Result(new Invocation(method.getName(), params), value, Set.of(), List.of()))));
+        return snapshot;
+    }
+
+    /**
+     * Gets the primitive tables of the methods that have been called
+     * @return a map of methods to their tables
+     */
+    private Map<Method, PrimitiveTable> tables() {
+        Map<Method, PrimitiveTable> tables = new LinkedHashMap<>();
+        for (MethodInfo info : methods.values()) {
+            if (Objects.nonNull(info.table())) tables.put(info.method(), info.table());
+        }
+        return tables;
+    }
+
+    /**
+     * Gets the method calls made at the start of recent builds which made any calls
+     * @param count the maximum number of builds, including the current build
+     * @return the sets of calls made by each build, oldest first
+     */
+    private List<Set<Invocation>> recentBuilds(int count) {
+        List<Set<Invocation>> recent = new ArrayList<>();
+        synchronized (roots) {
+            if (!roots.isEmpty()) recent.add(new LinkedHashSet<>(roots));
+        }
+        synchronized (builds) {
+            for (int i = builds.size() - 1; i >= 0 && recent.size() < count; i--) {
+                if (!builds.get(i).isEmpty()) recent.add(0, builds.get(i));
+            }
+        }
+        return recent;
+    }
+
+    /**
+     * Removes the cache entries which were not used by recent builds.
+     * <p>
+     * An entry is used by a build if it is the result of a method call made at the start of the build,
+     * i.e. a call which was not made by another cacheable method call, or of a call made by an entry the build used.
+     * The results stored in {@link PrimitiveTable primitive tables} are always kept.
+     * Builds are delimited by {@link #load(InputStream) loading} the cache and {@link #journal(OutputStream, boolean)
+     * starting a journal}, and builds which made no method calls are not counted.
+     * This method should not be called while memoized methods are executing.
+     *
+     * @param retained the number of recent builds whose entries are kept, including the current build
+     * @return the number of entries removed
+     */
+    public int gc(int retained) {
+        decodeAll();
+        List<Set<Invocation>> recent = recentBuilds(retained);
+        boolean started = !roots.isEmpty();
+        synchronized (builds) {
+            builds.clear();
+            builds.addAll(started ? recent.subList(0, recent.size() - 1) : recent);
+        }
+
+        Set<Invocation> marked = new HashSet<>();
+        Deque<Invocation> reachable = new ArrayDeque<>();
+        recent.forEach(reachable::addAll);
+        while (!reachable.isEmpty()) {
+            Invocation signature = reachable.pop();
+            if (marked.add(signature)) {
+                Result result = results.get(signature);
+                if (Objects.nonNull(result)) reachable.addAll(result.calls());
+            }
+        }
+
+        int removed = 0;
+        List<Result> entries;
+        synchronized (results) {
+            entries = new ArrayList<>(results.values());
+        }
+        for (Result result : entries) {
+            if (!marked.contains(result.signature()) && discard(result.signature(), result)) {
+                record(CacheFormat.Change.remove(result.signature()));
+                removed++;
+            }
+        }
+        modified |= removed > 0;
+        return removed;
     }
 
     /**
@@ -127,11 +608,163 @@ public class Memorizer {
      * @return the number of cache entries
      */
     public int entries(BiConsumer<Result, Boolean> fn) {
-        results.values().forEach(res -> {
-            boolean current = res.isCurrent(states);
-            fn.accept(res, current);
-        });
-        return results.values().size();
+        decodeAll();
+        if (executing.isEmpty()) probed.clear();
+        List<Result> entries = snapshot();
+        Set<Invocation> stale = stale();
+        entries.forEach(res -> fn.accept(res, !stale.contains(res.signature())));
+        return entries.size();
+    }
+
+    /**
+     * Finds the cache entries which are stale,
+     * by determining which mutable objects have been modified and following the edges to the results that refer to them.
+     * Since the dependencies of a result include those of the calls it made, a single edge reaches every stale result.
+     * @return the signatures of the stale results
+     */
+    private Set<Invocation> stale() {
+        List<Map.Entry<Mutable, Set<Invocation>>> edges;
+        synchronized (dependents) {
+            edges = new ArrayList<>(dependents.entrySet());
+        }
+        Set<Invocation> stale = new HashSet<>();
+        for (Map.Entry<Mutable, Set<Invocation>> edge : edges) {
+            Mutable m = edge.getKey();
+            verify(m);
+            if (!Objects.equals(currentState(m), states.get(m))) stale.addAll(edge.getValue());
+        }
+        return stale;
+    }
+
+    /**
+     * Adds a result to the cache, evicting other results if the cache exceeds its capacity.
+     * The removal of evicted results is recorded in the journal.
+     * @param result the result
+     * @param replace true to replace any earlier result of the same method call
+     * @return true if the result was kept, or false if it was evicted immediately or not added
+     */
+    private boolean store(Result result, boolean replace) {
+        Result previous;
+        List<Result> evicted = new ArrayList<>();
+        synchronized (results) {
+            previous = replace ? results.put(result.signature(), result) : results.putIfAbsent(result.signature(), result);
+            if (!replace && Objects.nonNull(previous)) return false;
+            if (Objects.nonNull(capacity)) {
+                if (Objects.nonNull(previous)) weight -= capacity.weigher().applyAsLong(previous);
+                weight += capacity.weigher().applyAsLong(result);
+                evict(result, evicted);
+                sketch.ensureCapacity(results.size());
+            }
+        }
+        if (Objects.nonNull(previous)) unindex(previous);
+        boolean kept = !evicted.contains(result);
+        if (kept) index(result);
+        for (Result victim : evicted) {
+            if (victim != result) {
+                unindex(victim);
+                modified = true;
+                record(CacheFormat.Change.remove(victim.signature()));
+            }
+            observer.evicted(victim.signature(), evictions.incrementAndGet());
+        }
+        return kept;
+    }
+
+    /**
+     * Removes results until the cache is within its capacity
+     * @param added the result which was just added
+     * @param evicted the list that removed results are added to
+     */
+    private void evict(Result added, List<Result> evicted) {
+        Iterator<Result> eldest = results.values().iterator();
+        while (weight > capacity.maximum() && eldest.hasNext()) {
+            Result victim = eldest.next();
+            if (victim == added) continue;
+            if (sketch.frequency(added.signature()) < sketch.frequency(victim.signature())) {
+                // the new result is less likely to be used again than the one it would replace
+                victim = added;
+                results.remove(added.signature());
+            } else {
+                eldest.remove();
+            }
+            weight -= capacity.weigher().applyAsLong(victim);
+            evicted.add(victim);
+            if (victim == added) return;
+        }
+        if (weight > capacity.maximum()) {
+            results.remove(added.signature());
+            weight -= capacity.weigher().applyAsLong(added);
+            evicted.add(added);
+        }
+    }
+
+    /**
+     * Removes a result from the cache
+     * @param signature the method call
+     * @param expected the result to remove, or null to remove any result of the method call
+     * @return true if a result was removed
+     */
+    private boolean discard(Invocation signature, Result expected) {
+        Result removed;
+        synchronized (results) {
+            removed = results.get(signature);
+            if (Objects.isNull(removed) || Objects.nonNull(expected) && removed != expected) return false;
+            results.remove(signature);
+            if (Objects.nonNull(capacity)) weight -= capacity.weigher().applyAsLong(removed);
+        }
+        unindex(removed);
+        return true;
+    }
+
+    /**
+     * Adds the edges from the mutable objects a result refers to, to the result
+     * @param result the result
+     */
+    private void index(Result result) {
+        for (Mutable m : referenced(result)) {
+            dependents.computeIfAbsent(m, k -> ConcurrentHashMap.newKeySet()).add(result.signature());
+        }
+    }
+
+    /**
+     * Removes the edges to a result
+     * @param result the result
+     */
+    private void unindex(Result result) {
+        for (Mutable m : referenced(result)) {
+            dependents.computeIfPresent(m, (k, sigs) -> {
+                sigs.remove(result.signature());
+                return sigs.isEmpty() ? null : sigs;
+            });
+        }
+    }
+
+    /**
+     * Gets the mutable objects whose states determine whether a result is current
+     * @param result the result
+     * @return the mutable parameters, dependencies and value of the result
+     */
+    private static Set<Mutable> referenced(Result result) {
+        Set<Mutable> referenced = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Object param : result.signature().params()) {
+            if (param instanceof Mutable m) referenced.add(m);
+        }
+        referenced.addAll(result.dependencies());
+        if (result.value() instanceof Mutable m) referenced.add(m);
+        return referenced;
+    }
+
+    /**
+     * Removes all results from the cache
+     */
+    private void clear() {
+        synchronized (results) {
+            results.clear();
+            weight = 0;
+        }
+        pending.clear();
+        dependents.clear();
+        tables().values().forEach(PrimitiveTable::clear);
     }
 
     /**
@@ -140,16 +773,86 @@ public class Memorizer {
      * @return True if there is a current cache entry, False if it is stale, or null if there is no entry
      */
     public Boolean resultStatus(Invocation invocation) {
-        Result result = results.get(invocation);
-        return Objects.isNull(result) ? null : result.isCurrent(states);
+        for (Map.Entry<Method, PrimitiveTable> table : tables().entrySet()) {
+            if (table.getKey().getName().equals(invocation.name())
+                    && table.getValue().accepts(invocation.params())
+                    && Objects.nonNull(table.getValue().get(invocation.params().toArray()))) {
+                return true;
+            }
+        }
+        Result result = lookup(invocation);
+        return Objects.isNull(result) ? null : isCurrent(result);
+    }
+
+    /**
+     * Checks if a cached result is up to date with the mutable objects it depends on
+     * @param result the result
+     * @return true if the result is current
+     */
+    private boolean isCurrent(Result result) {
+        Events.StalenessCheck event = new Events.StalenessCheck();
+        event.begin();
+        if (!unverified.isEmpty()) {
+            referenced(result).forEach(this::verify);
+        }
+        boolean current = result.isCurrent(states, this.current);
+        if (event.shouldCommit()) {
+            event.method = result.signature().name();
+            event.dependencies = result.dependencies().size();
+            event.current = current;
+            event.commit();
+        }
+        return current;
+    }
+
+    /**
+     * Checks whether a mutable object has been {@link Mutable#modifiedSince modified} since its loaded state,
+     * if it has not been checked yet, and records its state if it has not been modified
+     * @param m the mutable object
+     */
+    private void verify(Mutable m) {
+        Serializable saved = unverified.remove(m);
+        if (Objects.isNull(saved)) return;
+        if (COMPARES_STATES.get(m.getClass())) {
+            if (Objects.equals(saved, currentState(m))) states.putIfAbsent(m, saved);
+        } else if (!m.modifiedSince(saved)) {
+            states.putIfAbsent(m, currentState(m));
+        }
+    }
+
+    /**
+     * Gets the current state of a mutable object,
+     * using the state determined earlier if the object has not been returned by a method call since
+     * @param m the mutable object
+     * @return the current state
+     */
+    private Serializable currentState(Mutable m) {
+        Serializable state = probed.get(m);
+        if (Objects.isNull(state)) {
+            Events.Probe event = new Events.Probe();
+            event.begin();
+            state = m.currentState();
+            if (event.shouldCommit()) {
+                event.type = m.getClass();
+                String str = String.valueOf(m);
+                event.object = str.length() > 200 ? str.substring(0, 200) + "..." : str;
+                event.commit();
+            }
+            if (Objects.nonNull(state) && m != Mutable.CHANGED) probed.put(m, state);
+        }
+        return state;
     }
 
     /**
      * Erases all method call results from the cache
      */
     public void forget() {
-        results.clear();
+        clear();
         states.clear();
+        unverified.clear();
+        probed.clear();
+        modified = true;
+        record(CacheFormat.Change.clear());
     }
 
     /**
@@ -160,57 +863,334 @@ public class Memorizer {
      * @return an instance of the interface
      */
     public <T> T instantiate(Class<T> t) {
-        dependencies.push(new HashSet<>());
-        return t.cast(Proxy.newProxyInstance(t.getClassLoader(), new Class[]{t}, this::invokeMethod));
+        if (Objects.isNull(scopes.get().peek().signature)) {
+            scopes.set(stack(true));
+        }
+        return t.cast(Proxy.newProxyInstance(t.getClassLoader(), new Class<?>[]{t}, this::invokeMethod));
     }
 
-    private Object invokeMethod(Object proxy, Method method, Object[] args)
-            throws Throwable {
-        Invocation signature = new Invocation(method, args);
+    /**
+     * Creates a memoized instance of an interface using a class generated for the interface
+     * rather than a {@link Proxy}, which calls default methods directly instead of reflectively.
+     * The instance behaves like one created by {@link #instantiate(Class)},
+     * except that the methods of {@link Object} are not intercepted.
+     * If a class cannot be generated, for example because the interface's package is not open,
+     * a {@link Proxy} is used instead.
+     * @param <T> the interface type to instantiate
+     * @param t the Java class of the interface
+     * @return an instance of the interface
+     */
+    public <T> T instantiateGenerated(Class<T> t) {
+        try {
+            if (Objects.isNull(scopes.get().peek().signature)) {
+                scopes.set(stack(true));
+            }
+            return ProxyGenerator.newInstance(t, this::invokeMethod);
+        } catch (IllegalArgumentException e) {
+            return instantiate(t);
+        }
+    }
 
-        Observer.Status status = Observer.Status.COMPUTE;
-        if (results.containsKey(signature)) {
-            Result result = results.get(signature);
-            Object value = result.value();
+    /**
+     * Creates a call stack
+     * @param independent true if calls made at the bottom of the stack are not made by another thread's method
+     * @return a stack containing a root scope
+     */
+    private static Deque<Scope> stack(boolean independent) {
+        Deque<Scope> stack = new ConcurrentLinkedDeque<>();
+        stack.push(new Scope(null, independent, false));
+        return stack;
+    }
 
-            if (!result.isCurrent(states)) {
-                status = Observer.Status.REFRESH;
-                results.remove(signature);
-            } else {
-                observer.startMethod(Observer.Status.CURRENT, method, signature.params());
-                dependencies.peek().addAll(result.dependencies());
-                observer.endMethod(Observer.Status.CURRENT, method, signature.params(), value);
-                return result.value();
+    /**
+     * Creates a call stack for a task submitted by other methods
+     * @param origin the scopes of the methods that submitted the task
+     * @return a stack containing a root scope
+     */
+    private static Deque<Scope> stack(List<Scope> origin) {
+        Deque<Scope> stack = new ConcurrentLinkedDeque<>();
+        stack.push(new Scope(null, false, false, origin));
+        return stack;
+    }
+
+    /**
+     * Gets an executor which runs tasks using another executor,
+     * treating the memoized method calls made by each task as calls of the memoized method which submitted it,
+     * as if the task had been run on the thread that submitted it
+     * @param executor the executor that runs the tasks
+     * @return the executor
+     */
+    public Executor executor(Executor executor) {
+        return task -> {
+            List<Scope> origin = callers(scopes.get());
+            executor.execute(() -> {
+                Deque<Scope> outer = scopes.get();
+                scopes.set(stack(origin));
+                try {
+                    task.run();
+                } finally {
+                    scopes.set(outer);
+                }
+            });
+        };
+    }
+
+    private Object invokeMethod(Object proxy, Method method, Object[] args) throws Throwable {
+        Events.Call event = new Events.Call();
+        event.begin();
+        try {
+            return call(proxy, method, args, event);
+        } finally {
+            if (event.shouldCommit()) {
+                event.method = method.getName();
+                event.commit();
+            }
+        }
+    }
+
+    private Object call(Object proxy, Method method, Object[] args, Events.Call event) throws Throwable {
+        MethodInfo info = methods.get(method);
+        if (Objects.isNull(info)) {
+            info = methods.computeIfAbsent(method, m -> new MethodInfo(m, Objects.isNull(capacity)));
+        }
+        PrimitiveTable table = info.table();
+        if (Objects.nonNull(table)) {
+            Object value = table.get(args);
+            if (Objects.nonNull(value)) return current(event, method, Invocation.params(args, false), value);
+        }
+        Invocation signature = new Invocation(method.getName(), Invocation.params(args, info.varArgs()));
+        if (Objects.nonNull(sketch)) sketch.increment(signature);
+        Deque<Scope> stack = scopes.get();
+        if (Objects.isNull(stack.peek().signature) && executing.isEmpty()) {
+            probed.clear(); // a call made while no other call is executing starts a new build
+        }
+        List<Scope> callers = callers(stack);
+        for (Scope caller : callers) {
+            if (Objects.nonNull(caller.signature)) caller.calls.add(signature);
+            if (!caller.cacheable) root(signature);
+        }
+
+        Result result = lookup(signature);
+        if (Objects.nonNull(result) && isCurrent(result)) {
+            if (Objects.nonNull(table) && result.dependencies().isEmpty() && table.put(args, result.value())) {
+                discard(signature, result); // move a loaded result to the table
+            }
+            return current(event, method, signature, result, callers);
+        }
+        if (!info.cacheable()) {
+            return compute(event, proxy, info, args, signature, result, stack, callers).value();
+        }
+
+        Computation computation = new Computation();
+        Computation other = running.putIfAbsent(signature, computation);
+        if (Objects.nonNull(other) && other.thread == computation.thread) {
+            // a recursive call, which cannot wait for its own result
+            return compute(event, proxy, info, args, signature, result, stack, callers).value();
+        }
+        if (Objects.nonNull(other)) {
+            try {
+                return current(event, method, signature, other.join(), callers);
+            } catch (CompletionException e) {
+                throw e.getCause();
+            }
+        }
+
+        try {
+            result = results.get(signature);
+            if (Objects.isNull(result) && Objects.nonNull(table)) {
+                Object value = table.get(args);
+                if (Objects.nonNull(value)) result = new Result(signature, value, Set.of(), List.of());
+            }
+            if (Objects.nonNull(result) && isCurrent(result)) {
+                computation.complete(result);
+                return current(event, method, signature, result, callers);
+            }
+            result = compute(event, proxy, info, args, signature, result, stack, callers);
+            computation.complete(result);
+            return result.value();
+        } catch (Throwable t) {
+            computation.completeExceptionally(t);
+            throw t;
+        } finally {
+            running.remove(signature, computation);
+        }
+    }
+
+    /**
+     * Gets the scopes of the methods that a call is made by
+     * @param stack the call stack of the current thread
+     * @return the scope at the top of the stack, the scopes of the methods that submitted the task being executed,
+     * or if the call is made by a thread that was not created by this memoizer,
+     * the scopes of the methods being executed by other threads
+     */
+    private List<Scope> callers(Deque<Scope> stack) {
+        Scope top = stack.peek();
+        if (Objects.nonNull(top.signature) || top.independent) return List.of(top);
+        if (Objects.nonNull(top.origin)) return top.origin;
+
+        List<Scope> callers = new ArrayList<>();
+        executing.values().forEach(other -> {
+            Scope scope = other.peek();
+            if (Objects.nonNull(scope) && Objects.nonNull(scope.signature)) callers.add(scope);
+        });
+        return callers.isEmpty() ? List.of(top) : callers;
+    }
+
+    private Object current(Events.Call event, Method method, Invocation signature, Result result,
+            List<Scope> callers) {
+        event.status = Observer.Status.CURRENT.name();
+        event.dependencies = result.dependencies().size();
+        Object value = result.value();
+        observer.startMethod(Observer.Status.CURRENT, method, signature.params());
+        if (!result.dependencies().isEmpty()) {
+            for (Scope caller : callers) {
+                caller.dependencies.addAll(result.dependencies());
             }
         }
+        observer.endMethod(Observer.Status.CURRENT, method, signature.params(), value);
+        return value;
+    }
+
+    private Object current(Events.Call event, Method method, List<Object> params, Object value) {
+        event.status = Observer.Status.CURRENT.name();
+        observer.startMethod(Observer.Status.CURRENT, method, params);
+        observer.endMethod(Observer.Status.CURRENT, method, params, value);
+        return value;
+    }
 
-        if (Arrays.stream(method.getParameterTypes()).allMatch(Mutable.class::isAssignableFrom)) {
-            dependencies.push(new HashSet<>());
-        } else { // propagate dependencies to invoked method if it has params without version info
-            dependencies.push(new HashSet<>(dependencies.peek()));
+    private Result compute(Events.Call event, Object proxy, MethodInfo info, Object[] args, Invocation signature,
+            Result previous, Deque<Scope> stack, List<Scope> callers) throws Throwable {
+        Method method = info.method();
+        Observer.Status status = Observer.Status.COMPUTE;
+        if (Objects.nonNull(previous)) {
+            status = Observer.Status.REFRESH;
+            if (discard(signature, previous)) {
+                modified = true;
+                record(CacheFormat.Change.remove(signature));
+            }
+            prefetch(proxy, previous.calls());
         }
-        observer.startMethod(status, method, signature.params());
 
-        Object value = null;
+        Scope scope = new Scope(signature, false, info.cacheable());
+        if (!info.independent()) {
+            // propagate dependencies to invoked method if it has params without version info
+            callers.forEach(caller -> scope.dependencies.addAll(caller.dependencies));
+        }
+        SharedCache sharedCache = info.cacheable() ? shared : null;
+        if (Objects.nonNull(sharedCache) && !sharedCache.shares(method.getReturnType())) sharedCache = null;
+        Set<Mutable> inputs = new LinkedHashSet<>();
+        if (Objects.nonNull(sharedCache)) {
+            for (Object param : signature.params()) {
+                if (param instanceof Mutable m) inputs.add(m);
+            }
+            inputs.addAll(scope.dependencies);
+        }
+        boolean outermost = stack.peek().independent;
+        stack.push(scope);
+        if (outermost) executing.put(Thread.currentThread(), stack);
+        event.status = status.name();
+
         try {
-            value = observer.endMethod(status, method, signature.params(),
-                    InvocationHandler.invokeDefault(proxy, method, args));
-            if (method.getReturnType() != Void.TYPE) {
-                results.put(signature, new Result(signature, value, dependencies.peek()));
+            observer.startMethod(status, method, signature.params());
+            Result restored = Objects.isNull(sharedCache) ? null : sharedCache.fetch(signature, inputs);
+            if (Objects.nonNull(restored)) {
+                scope.dependencies.addAll(restored.dependencies());
+                scope.calls.addAll(restored.calls());
+                for (Mutable m : referenced(restored)) {
+                    probed.remove(m); // restored resources have been modified
+                    states.computeIfAbsent(m, this::currentState);
+                }
             }
-            if (Mutable.class.isAssignableFrom(method.getReturnType())) {
+            Object value = observer.endMethod(status, method, signature.params(),
+                    Objects.nonNull(restored) ? restored.value()
+                    : proxy instanceof Proxy
+                            ? InvocationHandler.invokeDefault(proxy, method, args)
+                            : ProxyGenerator.invokeDefault(proxy, method, args));
+            if (info.returnsMutable()) {
                 if (Objects.isNull(value)) {
-                    dependencies.peek().add(Mutable.CHANGED);
+                    scope.dependencies.add(Mutable.CHANGED);
                 } else {
                     Mutable m = (Mutable) value;
-                    dependencies.peek().add(m);
-                    states.computeIfAbsent(m, Mutable::currentState);
+                    scope.dependencies.add(m);
+                    probed.remove(m);
+                    states.computeIfAbsent(m, this::currentState);
                 }
             }
-            return value;
+            Result result = new Result(signature, value, Set.copyOf(scope.dependencies), scope.calls());
+            event.dependencies = result.dependencies().size();
+            if (!info.cacheable()) {
+                probed.clear();
+            } else if (Objects.nonNull(info.table()) && result.dependencies().isEmpty()
+                    && info.table().put(args, value)) {
+                result = new Result(signature, value, Set.of(), List.of());
+                modified = true;
+                recordPut(result);
+            } else {
+                if (store(result, true)) {
+                    modified = true;
+                    recordPut(result);
+                }
+                if (Objects.nonNull(sharedCache) && Objects.isNull(restored)) {
+                    Result saved = persistable(result);
+                    if (Objects.nonNull(saved)) sharedCache.store(saved, inputs);
+                }
+            }
+            return result;
         } finally {
-            Set<Mutable> used = dependencies.pop();
-            dependencies.peek().addAll(used);
+            stack.pop();
+            if (outermost) executing.remove(Thread.currentThread());
+            callers.forEach(caller -> caller.dependencies.addAll(scope.dependencies));
+        }
+    }
+
+    /**
+     * Starts method calls in the background which can be executed independently of their caller
+     * @param proxy the memoized instance
+     * @param calls the calls made by a previous execution of the caller
+     */
+    private void prefetch(Object proxy, List<Invocation> calls) {
+        if (Objects.isNull(executor)) return;
+
+        for (Invocation call : calls) {
+            Method method = independentMethod(proxy.getClass(), call);
+            if (Objects.isNull(method) || running.containsKey(call)) continue;
+
+            Result result = lookup(call);
+            if (Objects.nonNull(result) && isCurrent(result)) continue;
+
+            executor.execute(() -> {
+                Deque<Scope> outer = scopes.get();
+                scopes.set(stack(true));
+                try {
+                    method.invoke(proxy, call.params().toArray());
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    // the caller will repeat the call and receive the exception
+                } finally {
+                    scopes.set(outer);
+                }
+            });
+        }
+    }
+
+    /**
+     * Finds the method that was invoked by a method call,
+     * if it has no parameters that could inherit dependencies from its caller
+     * @param type the proxy type
+     * @param call the method call
+     * @return the method, or null if it is ambiguous or does not have independent dependencies
+     */
+    private static Method independentMethod(Class<?> type, Invocation call) {
+        Method found = null;
+        for (Method method : type.getMethods()) {
+            if (!method.getName().equals(call.name())) continue;
+            if (Objects.nonNull(found) || method.isVarArgs()
+                    || method.getReturnType() == Void.TYPE
+                    || method.getParameterCount() != call.params().size()
+                    || !Arrays.stream(method.getParameterTypes()).allMatch(Mutable.class::isAssignableFrom)) {
+                return null;
+            }
+            found = method;
         }
+        return found;
     }
 }
@@ -43,4 +43,12 @@ public interface Observer {
     default Object endMethod(Status status, Method method, List<Object> params, Object result) {
         return result;
     }
+
+    /**
+     * Notification that a result was removed from a memoizer's cache to keep the cache within its capacity.
+     * The method call will be executed again if it is repeated.
+     * @param signature the method call whose result was removed
+     * @param evictions the number of results that have been removed from the cache so far
+     */
+    default void evicted(Invocation signature, long evictions) { }
 }
\ No newline at end of file
@@ -0,0 +1,190 @@
+package org.copalis.jam.memo;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * An open-addressing hash table of the results of a method which has one or two primitive parameters
+ * and a primitive return type.
+ * <p>
+ * Parameters and results are stored as the bits of their primitive values,
+ * so a table holds no objects per entry, unlike a map of {@link Invocation}s to {@link Result}s.
+ * Keys are compared the same way as the boxed parameters of an {@link Invocation},
+ * i.e. floating-point values are compared by their canonical bit patterns.
+ *
+ * @author gilesjb
+ */
+final class PrimitiveTable {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private final Class<?>[] keyTypes;
+    private final Class<?> valueType;
+    private long[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int size;
+
+    private PrimitiveTable(Class<?>[] keyTypes, Class<?> valueType) {
+        this.keyTypes = keyTypes;
+        this.valueType = valueType;
+        allocate(16);
+    }
+
+    /**
+     * Creates a table for the results of a method, if the method's signature is supported
+     * @param method the method
+     * @return a table, or null if the method does not have one or two primitive parameters and a primitive return type
+     */
+    static PrimitiveTable of(Method method) {
+        Class<?>[] params = method.getParameterTypes();
+        Class<?> returned = method.getReturnType();
+        if (params.length == 0 || params.length > 2 || method.isVarArgs()
+                || !returned.isPrimitive() || returned == Void.TYPE
+                || !Arrays.stream(params).allMatch(Class::isPrimitive)) {
+            return null;
+        }
+        return new PrimitiveTable(params, returned);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity * keyTypes.length];
+        values = new long[capacity];
+        used = new boolean[capacity];
+    }
+
+    /**
+     * Checks if the parameters of a method call have the types of the method's parameters
+     * @param params the parameters
+     * @return true if the table can contain the result of the call
+     */
+    boolean accepts(List<Object> params) {
+        if (params.size() != keyTypes.length) return false;
+        for (int i = 0; i < keyTypes.length; i++) {
+            if (Objects.isNull(params.get(i)) || box(keyTypes[i], 0).getClass() != params.get(i).getClass()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets a result
+     * @param args the arguments of a method call
+     * @return the boxed result of the call, or null if there is no entry for the call
+     */
+    synchronized Object get(Object[] args) {
+        int slot = find(bits(args[0]), keyTypes.length > 1 ? bits(args[1]) : 0);
+        return used[slot] ? box(valueType, values[slot]) : null;
+    }
+
+    /**
+     * Adds a result, replacing any earlier result of the same call
+     * @param args the arguments of a method call
+     * @param value the result of the call
+     * @return true if the result was added, or false if the value does not have the method's return type
+     */
+    synchronized boolean put(Object[] args, Object value) {
+        if (Objects.isNull(value) || box(valueType, 0).getClass() != value.getClass()) return false;
+        if (size + 1 > used.length * LOAD_FACTOR) resize();
+
+        long k0 = bits(args[0]), k1 = keyTypes.length > 1 ? bits(args[1]) : 0;
+        int slot = find(k0, k1);
+        if (!used[slot]) {
+            used[slot] = true;
+            keys[slot * keyTypes.length] = k0;
+            if (keyTypes.length > 1) keys[slot * 2 + 1] = k1;
+            size++;
+        }
+        values[slot] = bits(value);
+        return true;
+    }
+
+    /**
+     * Gets the number of entries
+     * @return the number of results in the table
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Removes all entries
+     */
+    synchronized void clear() {
+        allocate(16);
+        size = 0;
+    }
+
+    /**
+     * Iterates over the entries
+     * @param fn a callback which receives the boxed parameters and result of each entry
+     */
+    synchronized void forEach(BiConsumer<List<Object>, Object> fn) {
+        for (int slot = 0; slot < used.length; slot++) {
+            if (!used[slot]) continue;
+            Object[] params = new Object[keyTypes.length];
+            for (int i = 0; i < params.length; i++) {
+                params[i] = box(keyTypes[i], keys[slot * keyTypes.length + i]);
+            }
+            fn.accept(Invocation.params(params, false), box(valueType, values[slot]));
+        }
+    }
+
+    /**
+     * Finds the slot of a key, using linear probing
+     * @return the slot containing the key, or the empty slot where it would be added
+     */
+    private int find(long k0, long k1) {
+        int mask = used.length - 1, width = keyTypes.length;
+        int slot = (int) mix(k0 * 31 + k1) & mask;
+        while (used[slot] && (keys[slot * width] != k0 || width > 1 && keys[slot * width + 1] != k1)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys, oldValues = values;
+        boolean[] oldUsed = used;
+        int width = keyTypes.length;
+        allocate(used.length * 2);
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (!oldUsed[i]) continue;
+            long k0 = oldKeys[i * width], k1 = width > 1 ? oldKeys[i * width + 1] : 0;
+            int slot = find(k0, k1);
+            used[slot] = true;
+            keys[slot * width] = k0;
+            if (width > 1) keys[slot * width + 1] = k1;
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static long bits(Object boxed) {
+        if (boxed instanceof Long l) return l;
+        if (boxed instanceof Integer i) return i;
+        if (boxed instanceof Double d) return Double.doubleToLongBits(d);
+        if (boxed instanceof Float f) return Float.floatToIntBits(f);
+        if (boxed instanceof Boolean b) return b ? 1 : 0;
+        if (boxed instanceof Character c) return c;
+        if (boxed instanceof Short s) return s;
+        return (Byte) boxed;
+    }
+
+    private static Object box(Class<?> type, long bits) {
+        if (type == Long.TYPE) return bits;
+        if (type == Integer.TYPE) return (int) bits;
+        if (type == Double.TYPE) return Double.longBitsToDouble(bits);
+        if (type == Float.TYPE) return Float.intBitsToFloat((int) bits);
+        if (type == Boolean.TYPE) return bits != 0;
+        if (type == Character.TYPE) return (char) bits;
+        if (type == Short.TYPE) return (short) bits;
+        return (byte) bits;
+    }
+}
@@ -0,0 +1,380 @@
+package org.copalis.jam.memo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Generates classes which implement an interface by passing calls to an {@link InvocationHandler},
+ * as an alternative to {@link java.lang.reflect.Proxy}.
+ * <p>
+ * For each default method of the interface the generated class also has a bridge method
+ * which calls the default implementation with {@code invokespecial},
+ * so that the handler can call a default method without the overhead of {@link InvocationHandler#invokeDefault}.
+ * The class is defined as a hidden class in the package of the interface if possible,
+ * otherwise as an ordinary class in that package.
+ *
+ * @author gilesjb
+ */
+final class ProxyGenerator {
+
+    private static final ClassValue<ProxyGenerator> generators = new ClassValue<>() {
+        @Override protected ProxyGenerator computeValue(Class<?> type) {
+            try {
+                return new ProxyGenerator(type);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("Cannot generate a class for " + type.getName(), e);
+            }
+        }
+    };
+
+    private static final String BRIDGE = "jam$default$";
+
+    private final Method[] methods;
+    private final Map<Method, MethodHandle> defaults = new HashMap<>();
+    private final MethodHandle constructor;
+
+    private ProxyGenerator(Class<?> type) throws ReflectiveOperationException {
+        Map<String, Method> unique = new LinkedHashMap<>();
+        for (Method method : type.getMethods()) {
+            if (!Modifier.isStatic(method.getModifiers())) {
+                unique.putIfAbsent(method.getName() + MethodType.methodType(method.getReturnType(),
+                        method.getParameterTypes()).toMethodDescriptorString(), method);
+            }
+        }
+        methods = unique.values().toArray(new Method[0]);
+
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+        byte[] bytes = generate(type);
+        try {
+            lookup = lookup.defineHiddenClass(bytes, true);
+        } catch (IllegalAccessException e) {
+            // a hidden class requires full privilege access, which is not available across class loaders
+            lookup = MethodHandles.privateLookupIn(lookup.defineClass(bytes), lookup);
+        }
+        Class<?> proxyClass = lookup.lookupClass();
+
+        constructor = lookup.findConstructor(proxyClass,
+                MethodType.methodType(void.class, InvocationHandler.class, Method[].class));
+        for (int i = 0; i < methods.length; i++) {
+            Method method = methods[i];
+            if (method.isDefault()) {
+                int count = method.getParameterCount();
+                defaults.put(method, lookup.findVirtual(proxyClass, BRIDGE + i,
+                                MethodType.methodType(method.getReturnType(), method.getParameterTypes()))
+                        .asType(MethodType.genericMethodType(count + 1))
+                        .asSpreader(Object[].class, count));
+            }
+        }
+    }
+
+    /**
+     * Creates an instance of a generated class
+     * @param <T> the interface type
+     * @param type the interface
+     * @param handler the invocation handler
+     * @return an instance of the interface
+     * @throws IllegalArgumentException if a class cannot be generated for the interface
+     */
+    static <T> T newInstance(Class<T> type, InvocationHandler handler) {
+        ProxyGenerator generator = generators.get(type);
+        InvocationHandler checked = (proxy, method, args) -> {
+            try {
+                return handler.invoke(proxy, method, args);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                for (Class<?> declared : method.getExceptionTypes()) {
+                    if (declared.isInstance(t)) throw t;
+                }
+                throw new UndeclaredThrowableException(t);
+            }
+        };
+        try {
+            return type.cast(generator.constructor.invoke(checked, generator.methods));
+        } catch (Throwable e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Calls the default implementation of a method on an instance of a generated class
+     * @param proxy the instance
+     * @param method the method
+     * @param args the method arguments
+     * @return the value returned by the method
+     * @throws Throwable the exception thrown by the method
+     */
+    static Object invokeDefault(Object proxy, Method method, Object[] args) throws Throwable {
+        // a generated class implements only the interface it was generated for
+        MethodHandle handle = generators.get(proxy.getClass().getInterfaces()[0]).defaults.get(method);
+        if (Objects.isNull(handle)) {
+            throw new IllegalArgumentException("\"" + method + "\" is not a default method");
+        }
+        return (Object) handle.invokeExact(proxy, args);
+    }
+
+    private byte[] generate(Class<?> type) {
+        ClassFile cf = new ClassFile(type.getName().replace('.', '/') + "$$Memoized");
+        int iface = cf.type(type);
+        int handlerField = cf.member(9, cf.thisClass, "handler", "Ljava/lang/reflect/InvocationHandler;");
+        int methodsField = cf.member(9, cf.thisClass, "methods", "[Ljava/lang/reflect/Method;");
+        int invoke = cf.member(11, cf.type(InvocationHandler.class), "invoke",
+                "(Ljava/lang/Object;Ljava/lang/reflect/Method;[Ljava/lang/Object;)Ljava/lang/Object;");
+
+        Code init = cf.method(0x0001, "<init>", "(Ljava/lang/reflect/InvocationHandler;[Ljava/lang/reflect/Method;)V", 2, 3);
+        init.op(0x2a).op(0xb7).u2(cf.member(10, cf.type(Object.class), "<init>", "()V"));
+        init.op(0x2a).op(0x2b).op(0xb5).u2(handlerField);
+        init.op(0x2a).op(0x2c).op(0xb5).u2(methodsField);
+        init.op(0xb1);
+
+        for (int i = 0; i < methods.length; i++) {
+            Method method = methods[i];
+            Class<?>[] params = method.getParameterTypes();
+            Class<?> result = method.getReturnType();
+            String descriptor = MethodType.methodType(result, params).toMethodDescriptorString();
+            int slots = 1;
+            for (Class<?> param : params) slots += slots(param);
+            if (slots > 255) {
+                throw new IllegalArgumentException("Too many parameters: " + method);
+            }
+
+            // public R m(...) { return (R) handler.invoke(this, methods[i], new Object[] { ... }); }
+            Code code = cf.method(0x0001, method.getName(), descriptor, 10, slots);
+            code.op(0x2a).op(0xb4).u2(handlerField).op(0x2a);
+            code.op(0x2a).op(0xb4).u2(methodsField).push(cf, i).op(0x32);
+            if (params.length == 0) {
+                code.op(0x01);
+            } else {
+                code.push(cf, params.length).op(0xbd).u2(cf.type(Object.class));
+                for (int p = 0, slot = 1; p < params.length; slot += slots(params[p++])) {
+                    code.op(0x59).push(cf, p).load(params[p], slot);
+                    if (params[p].isPrimitive()) {
+                        Class<?> box = MethodType.methodType(params[p]).wrap().returnType();
+                        code.op(0xb8).u2(cf.member(10, cf.type(box), "valueOf",
+                                MethodType.methodType(box, params[p]).toMethodDescriptorString()));
+                    }
+                    code.op(0x53);
+                }
+            }
+            code.op(0xb9).u2(invoke).u1(4).u1(0);
+            if (result == void.class) {
+                code.op(0x57).op(0xb1);
+            } else if (result.isPrimitive()) {
+                Class<?> box = MethodType.methodType(result).wrap().returnType();
+                code.op(0xc0).u2(cf.type(box));
+                code.op(0xb6).u2(cf.member(10, cf.type(box), result.getName() + "Value",
+                        MethodType.methodType(result).toMethodDescriptorString()));
+                code.ret(result);
+            } else {
+                code.op(0xc0).u2(cf.type(result)).ret(result);
+            }
+
+            if (method.isDefault()) {
+                // public R jam$default$i(...) { return Interface.super.m(...); }
+                Code bridge = cf.method(0x0001 | 0x1000, BRIDGE + i, descriptor, slots + 1, slots);
+                bridge.op(0x2a);
+                for (int p = 0, slot = 1; p < params.length; slot += slots(params[p++])) {
+                    bridge.load(params[p], slot);
+                }
+                bridge.op(0xb7).u2(cf.member(11, iface, method.getName(), descriptor));
+                if (result == void.class) {
+                    bridge.op(0xb1);
+                } else {
+                    bridge.ret(result);
+                }
+            }
+        }
+        return cf.toByteArray(iface);
+    }
+
+    private static int slots(Class<?> type) {
+        return type == long.class || type == double.class ? 2 : 1;
+    }
+
+    private static int opcode(Class<?> type, int base) {
+        if (type == long.class) return base + 1;
+        if (type == float.class) return base + 2;
+        if (type == double.class) return base + 3;
+        return type.isPrimitive() ? base : base + 4;
+    }
+
+    /**
+     * A minimal class file writer, sufficient for classes whose methods have no branches
+     */
+    private static final class ClassFile {
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream constants = new DataOutputStream(pool);
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<Code> methods = new ArrayList<>();
+        private int count = 1;
+        final int thisClass;
+
+        ClassFile(String name) {
+            thisClass = type(name);
+        }
+
+        private int constant(String key, int tag, Writer writer) {
+            Integer index = indexes.get(key);
+            if (Objects.isNull(index)) {
+                try {
+                    constants.writeByte(tag);
+                    writer.write(constants);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                index = count++;
+                indexes.put(key, index);
+            }
+            return index;
+        }
+
+        int utf8(String value) {
+            return constant("1:" + value, 1, out -> out.writeUTF(value));
+        }
+
+        int integer(int value) {
+            return constant("3:" + value, 3, out -> out.writeInt(value));
+        }
+
+        int type(String internalName) {
+            int name = utf8(internalName);
+            return constant("7:" + internalName, 7, out -> out.writeShort(name));
+        }
+
+        int type(Class<?> type) {
+            return type(type.getName().replace('.', '/')); // array names are already descriptors
+        }
+
+        int member(int tag, int owner, String name, String descriptor) {
+            int nameIndex = utf8(name), descIndex = utf8(descriptor);
+            int nameAndType = constant("12:" + name + ':' + descriptor, 12, out -> {
+                out.writeShort(nameIndex);
+                out.writeShort(descIndex);
+            });
+            return constant(tag + ":" + owner + ':' + nameAndType, tag, out -> {
+                out.writeShort(owner);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        Code method(int access, String name, String descriptor, int maxStack, int maxLocals) {
+            Code code = new Code(access, utf8(name), utf8(descriptor), maxStack, maxLocals);
+            methods.add(code);
+            return code;
+        }
+
+        byte[] toByteArray(int iface) {
+            int codeAttribute = utf8("Code");
+            int handlerName = utf8("handler"), handlerType = utf8("Ljava/lang/reflect/InvocationHandler;");
+            int methodsName = utf8("methods"), methodsType = utf8("[Ljava/lang/reflect/Method;");
+            int superClass = type(Object.class);
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(0xcafebabe);
+                out.writeShort(0);
+                out.writeShort(61);
+                out.writeShort(count);
+                pool.writeTo(out);
+                out.writeShort(0x0010 | 0x0020 | 0x1000); // final super synthetic
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(iface);
+
+                out.writeShort(2);
+                for (int[] field : new int[][] {{handlerName, handlerType}, {methodsName, methodsType}}) {
+                    out.writeShort(0x0002 | 0x0010); // private final
+                    out.writeShort(field[0]);
+                    out.writeShort(field[1]);
+                    out.writeShort(0);
+                }
+
+                out.writeShort(methods.size());
+                for (Code code : methods) {
+                    out.writeShort(code.access);
+                    out.writeShort(code.name);
+                    out.writeShort(code.descriptor);
+                    out.writeShort(1);
+                    out.writeShort(codeAttribute);
+                    out.writeInt(12 + code.bytes.size());
+                    out.writeShort(code.maxStack);
+                    out.writeShort(code.maxLocals);
+                    out.writeInt(code.bytes.size());
+                    code.bytes.writeTo(out);
+                    out.writeShort(0);
+                    out.writeShort(0);
+                }
+                out.writeShort(0);
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private interface Writer {
+            void write(DataOutputStream out) throws IOException;
+        }
+    }
+
+    /**
+     * The bytecode of a method
+     */
+    private static final class Code {
+        final int access, name, descriptor, maxStack, maxLocals;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        Code(int access, int name, int descriptor, int maxStack, int maxLocals) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        Code op(int opcode) {
+            bytes.write(opcode);
+            return this;
+        }
+
+        Code u1(int value) {
+            bytes.write(value);
+            return this;
+        }
+
+        Code u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+            return this;
+        }
+
+        Code push(ClassFile cf, int value) {
+            if (value <= 5) return op(0x03 + value);
+            if (value < 128) return op(0x10).u1(value);
+            if (value < 32768) return op(0x11).u2(value);
+            return op(0x13).u2(cf.integer(value));
+        }
+
+        Code load(Class<?> type, int slot) {
+            return op(opcode(type, 0x15)).u1(slot);
+        }
+
+        Code ret(Class<?> type) {
+            return op(opcode(type, 0xac));
+        }
+    }
+}
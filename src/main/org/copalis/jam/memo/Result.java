@@ -3,17 +3,43 @@ package org.copalis.jam.memo;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Function;
 
 /**
  * The result of a method call
  * @param signature the method call signature
  * @param value the method call result
  * @param dependencies the dependencies of the method call
+ * @param calls the memoized method calls made directly by the method call, in the order they were first made
  */
-public record Result(Invocation signature, Object value, Set<Mutable> dependencies) implements Mutable {
+public record Result(Invocation signature, Object value, Set<Mutable> dependencies, List<Invocation> calls)
+        implements Mutable {
+
+    /**
+     * Creates an instance
+     * @param signature the method call signature
+     * @param value the method call result
+     * @param dependencies the dependencies of the method call
+     * @param calls the memoized method calls made directly by the method call
+     */
+    public Result {
+        calls = Objects.isNull(calls) ? List.of() : calls;
+    }
+
+    /**
+     * Creates an instance which does not record any nested method calls
+     * @param signature the method call signature
+     * @param value the method call result
+     * @param dependencies the dependencies of the method call
+     */
+    public Result(Invocation signature, Object value, Set<Mutable> dependencies) {
+        this(signature, value, dependencies, List.of());
+    }
+
     boolean serializable() {
         return Memorizer.objSerializable(value) && signature.serializable();
     }
@@ -24,19 +50,29 @@ public record Result(Invocation signature, Object value, Set<Mutable> dependenci
      * @return true if this result is up to date
      */
     public boolean isCurrent(Map<Mutable, Serializable> states) {
+        return isCurrent(states, Mutable::currentState);
+    }
+
+    /**
+     * Indicates whether this result is up to date with mutable state
+     * @param states a map of mutable states
+     * @param current a function which gets the current state of a mutable object
+     * @return true if this result is up to date
+     */
+    public boolean isCurrent(Map<Mutable, Serializable> states, Function<Mutable, Serializable> current) {
         // have any parameter states changed?
-        if (!signature.isCurrent(states)) return false;
+        if (!signature.isCurrent(states, current)) return false;
 
         // have any transitive dependencies changed?
         for (Mutable dependency : dependencies) {
             Serializable prevState = states.get(dependency);
-            Serializable currentState = dependency.currentState();
+            Serializable currentState = current.apply(dependency);
             if (!Objects.equals(currentState, prevState)) return false;
         }
 
         // has the return value changed?
         if (!(value instanceof Mutable m)) return true;
-        if (!Objects.equals(m.currentState(), states.get(value))) return false;
+        if (!Objects.equals(current.apply(m), states.get(value))) return false;
         return true;
     }
 
@@ -0,0 +1,44 @@
+package org.copalis.jam.memo;
+
+import java.util.Set;
+
+/**
+ * A cache of method call results which can be shared between workspaces and machines.
+ * <p>
+ * A {@link Memorizer} consults its shared cache before executing a method call that is not in its own cache,
+ * and offers the results it computes to the shared cache.
+ * Results are looked up by the method call signature and the contents of its <i>inputs</i>,
+ * the mutable objects that the call is known to depend on before it is executed:
+ * its {@link Mutable} parameters and the dependencies it inherits from its caller.
+ * An implementation is responsible for checking that the other dependencies of a result it returns are unchanged,
+ * and for restoring any resources the result refers to.
+ *
+ * @author gilesjb
+ */
+public interface SharedCache {
+
+    /**
+     * Determines whether the results of methods with a given return type can be shared,
+     * so that calls of other methods are executed without looking up their inputs
+     * @param type the return type of a method
+     * @return true if the cache may store results of the type
+     */
+    default boolean shares(Class<?> type) {
+        return true;
+    }
+
+    /**
+     * Gets the result of a method call which was computed elsewhere
+     * @param signature the method call
+     * @param inputs the mutable objects the call depends on before it is executed
+     * @return the result, or null if the shared cache does not have a current result for the call
+     */
+    Result fetch(Invocation signature, Set<Mutable> inputs);
+
+    /**
+     * Offers a result to the shared cache. The cache may decline to store it.
+     * @param result the result of a method call
+     * @param inputs the mutable objects the call depended on before it was executed
+     */
+    void store(Result result, Set<Mutable> inputs);
+}
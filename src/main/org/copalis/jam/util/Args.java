@@ -1,7 +1,11 @@
 package org.copalis.jam.util;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.ProcessBuilder.Redirect;
 import java.util.LinkedList;
+import java.util.Objects;
 
 /**
  * A utility class for constructing vararg parameter lists.
@@ -9,6 +13,8 @@ import java.util.LinkedList;
  * @author gilesjb
  */
 public class Args {
+    private static volatile boolean captured;
+
     private final LinkedList<String> list = new LinkedList<>();
 
     private Args() { }
@@ -60,21 +66,64 @@ public class Args {
     }
 
     /**
-     * Executes an external process using these arguments
+     * Sets whether the output of processes which would inherit the console is copied to
+     * {@link System#out} and {@link System#err} instead,
+     * for when those streams have been replaced, for example to send a build's output to a remote console
+     * @param capture true if process output should be copied to the current standard streams
+     */
+    public static void captureOutput(boolean capture) {
+        captured = capture;
+    }
+
+    /**
+     * Executes an external process using these arguments.
+     * If the current thread is interrupted while waiting for the process, the process and its descendants are destroyed
      * @param pb the process builder used to execute the process
      */
     public void run(ProcessBuilder pb) {
+        Redirect output = pb.redirectOutput(), error = pb.redirectError();
+        boolean copyOut = captured && output == Redirect.INHERIT;
+        boolean copyErr = captured && error == Redirect.INHERIT && !pb.redirectErrorStream();
+        if (copyOut) pb.redirectOutput(Redirect.PIPE);
+        if (copyErr) pb.redirectError(Redirect.PIPE);
+        Process proc = null;
         try {
-            Process proc = pb.command(array()).start();
+            proc = pb.command(array()).start();
+            Thread out = copyOut ? copy(proc.getInputStream(), System.out) : null;
+            Thread err = copyErr ? copy(proc.getErrorStream(), System.err) : null;
             int status = proc.waitFor();
+            if (copyOut) out.join();
+            if (copyErr) err.join();
             if (status != 0) {
                 throw new RuntimeException("Process exited with status code: " + status);
             }
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException e) {
             throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            if (Objects.nonNull(proc)) {
+                proc.descendants().forEach(ProcessHandle::destroy);
+                proc.destroy();
+            }
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            pb.redirectOutput(output).redirectError(error);
         }
     }
 
+    private static Thread copy(InputStream in, PrintStream out) {
+        Thread thread = new Thread(() -> {
+            try (in) {
+                in.transferTo(out);
+            } catch (IOException e) {
+                // the process was destroyed
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
     @Override public String toString() {
         return list.toString();
     }
@@ -0,0 +1,302 @@
+package org.copalis.jam.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A summary of a compiled class, read from the constant pool and member tables of its class file.
+ *
+ * @param name the internal name of the class, e.g. {@code java/lang/String}
+ * @param supertypes the internal names of the class's superclass and the interfaces it implements
+ * @param references the internal names of the other classes that the class refers to
+ * @param api a digest of the class's signature and annotations and its non-private members,
+ * which changes if code compiled against the class might need to be recompiled
+ * @param constants a digest of the values of the class's compile-time constant fields,
+ * which other classes copy into their own class files
+ *
+ * @author gilesjb
+ */
+public record ClassFile(String name, Set<String> supertypes, Set<String> references, String api, String constants) {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int ACC_PRIVATE = 0x0002, ACC_SUPER = 0x0020, ACC_SYNTHETIC = 0x1000;
+    private static final Pattern DESCRIPTOR_CLASS = Pattern.compile("L([\\w/$]+)[;<]");
+    private static final HexFormat HEX = HexFormat.of();
+
+    /**
+     * Reads a class file
+     * @param path the location of the class file
+     * @return the summary of the class
+     */
+    public static ClassFile read(Path path) {
+        try {
+            return read(Files.readAllBytes(path));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Computes a fingerprint of the application binary interface of a set of compiled classes:
+     * the signatures, annotations and constant values of their non-private members, excluding method bodies.
+     * The fingerprint only changes if code compiled against the classes might need to be recompiled.
+     * @param files class files and jar files; other files are ignored
+     * @return the fingerprint
+     */
+    public static String fingerprint(Iterable<? extends File> files) {
+        Map<String, String> classes = new TreeMap<>();
+        try {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(".class")) {
+                    ClassFile type = read(file.toPath());
+                    classes.put(type.name(), type.api());
+                } else if (name.endsWith(".jar") && file.isFile()) {
+                    try (JarFile jar = new JarFile(file)) {
+                        for (JarEntry entry : (Iterable<JarEntry>) jar.stream()::iterator) {
+                            if (!entry.getName().endsWith(".class")) continue;
+                            try (InputStream in = jar.getInputStream(entry)) {
+                                ClassFile type = read(in.readAllBytes());
+                                classes.putIfAbsent(type.name(), type.api());
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return digest(classes.entrySet().stream().map(e -> e.getKey() + ' ' + e.getValue()).toList());
+    }
+
+    /**
+     * Reads the contents of a class file
+     * @param bytes the contents of a class file
+     * @return the summary of the class
+     * @throws IOException if the bytes are not a valid class file
+     */
+    public static ClassFile read(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC) throw new IOException("Not a class file");
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+
+        int count = in.readUnsignedShort();
+        Object[] pool = new Object[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+            case 1: pool[i] = in.readUTF(); break;                      // Utf8
+            case 3: pool[i] = in.readInt(); break;                      // Integer
+            case 4: pool[i] = in.readFloat(); break;                    // Float
+            case 5: pool[i++] = in.readLong(); break;                   // Long, occupies two entries
+            case 6: pool[i++] = in.readDouble(); break;                 // Double, occupies two entries
+            case 7: pool[i] = new ClassRef(in.readUnsignedShort()); break;   // Class
+            case 8: pool[i] = new StringRef(in.readUnsignedShort()); break;  // String
+            case 16: case 19: case 20: in.readUnsignedShort(); break;   // MethodType, Module, Package
+            case 15: in.readUnsignedByte(); in.readUnsignedShort(); break;  // MethodHandle
+            case 9: case 10: case 11: case 12: case 17: case 18: in.readInt(); break;
+            default: throw new IOException("Invalid constant pool tag " + tag);
+            }
+        }
+
+        // every Utf8 entry is scanned for descriptors, which over-approximates the referenced classes
+        Set<String> references = new TreeSet<>();
+        for (Object entry : pool) {
+            if (entry instanceof ClassRef ref && !((String) pool[ref.name()]).startsWith("[")) {
+                references.add((String) pool[ref.name()]);
+            } else if (entry instanceof String str && str.indexOf(';') >= 0) {
+                descriptorClasses(str, references);
+            }
+        }
+
+        List<String> api = new ArrayList<>(), constants = new ArrayList<>();
+        int access = in.readUnsignedShort() & ~ACC_SUPER;
+        String name = className(pool, in.readUnsignedShort());
+        int superIndex = in.readUnsignedShort();
+        api.add("class " + access + ' ' + name + " extends "
+                + (superIndex == 0 ? "" : className(pool, superIndex)));
+        Set<String> interfaces = new TreeSet<>();
+        for (int i = in.readUnsignedShort(); i > 0; i--) {
+            interfaces.add(className(pool, in.readUnsignedShort()));
+        }
+        api.add("implements " + interfaces);
+        Set<String> supertypes = new TreeSet<>(interfaces);
+        if (superIndex != 0) supertypes.add(className(pool, superIndex));
+
+        for (String kind : List.of("field ", "method ")) {
+            for (int i = in.readUnsignedShort(); i > 0; i--) {
+                int flags = in.readUnsignedShort();
+                String member = kind + flags + ' ' + pool[in.readUnsignedShort()] + ' ' + pool[in.readUnsignedShort()];
+                StringBuilder attributes = new StringBuilder();
+                String constant = attributes(in, pool, attributes);
+                if (Objects.nonNull(constant)) constants.add(member + " = " + constant);
+                if ((flags & (ACC_PRIVATE | ACC_SYNTHETIC)) == 0) api.add(member + attributes);
+            }
+        }
+        StringBuilder attributes = new StringBuilder();
+        attributes(in, pool, attributes);
+        api.set(1, api.get(1) + attributes);
+        api.subList(2, api.size()).sort(null);
+        constants.sort(null);
+        references.remove(name);
+        return new ClassFile(name, supertypes, references, digest(api), digest(constants));
+    }
+
+    /**
+     * A Class constant pool entry
+     * @param name the index of the class name
+     */
+    private record ClassRef(int name) { }
+
+    /**
+     * A String constant pool entry
+     * @param value the index of the string value
+     */
+    private record StringRef(int value) { }
+
+    /**
+     * Reads the attributes of a class or member, appending the ones which are part of its API
+     * @param in the class file, positioned at the attribute count
+     * @param pool the constant pool
+     * @param api receives the descriptions of the API attributes
+     * @return the value of the member's ConstantValue attribute, or null if it has none
+     */
+    private static String attributes(DataInputStream in, Object[] pool, StringBuilder api) throws IOException {
+        String constant = null;
+        for (int j = in.readUnsignedShort(); j > 0; j--) {
+            String attribute = (String) pool[in.readUnsignedShort()];
+            byte[] info = new byte[in.readInt()];
+            in.readFully(info);
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(info));
+            switch (attribute) {
+            case "ConstantValue":
+                Object value = pool[data.readUnsignedShort()];
+                constant = value instanceof StringRef str ? '"' + (String) pool[str.value()] + '"' : String.valueOf(value);
+                api.append(" = ").append(constant);
+                break;
+            case "Signature":
+                api.append(" signature ").append(pool[data.readUnsignedShort()]);
+                break;
+            case "Exceptions":
+                Set<String> thrown = new TreeSet<>();
+                for (int k = data.readUnsignedShort(); k > 0; k--) {
+                    thrown.add(className(pool, data.readUnsignedShort()));
+                }
+                api.append(" throws ").append(thrown);
+                break;
+            case "RuntimeVisibleAnnotations":
+            case "RuntimeInvisibleAnnotations":
+                api.append(' ').append(attribute).append(' ');
+                annotations(data, pool, api);
+                break;
+            case "RuntimeVisibleParameterAnnotations":
+            case "RuntimeInvisibleParameterAnnotations":
+                api.append(' ').append(attribute);
+                for (int k = data.readUnsignedByte(); k > 0; k--) {
+                    api.append(' ');
+                    annotations(data, pool, api);
+                }
+                break;
+            case "AnnotationDefault":
+                api.append(" default ");
+                elementValue(data, pool, api);
+                break;
+            default:
+            }
+        }
+        return constant;
+    }
+
+    private static void annotations(DataInputStream data, Object[] pool, StringBuilder out) throws IOException {
+        List<String> annotations = new ArrayList<>();
+        for (int i = data.readUnsignedShort(); i > 0; i--) {
+            StringBuilder annotation = new StringBuilder();
+            annotation(data, pool, annotation);
+            annotations.add(annotation.toString());
+        }
+        annotations.sort(null);
+        out.append(annotations);
+    }
+
+    private static void annotation(DataInputStream data, Object[] pool, StringBuilder out) throws IOException {
+        out.append('@').append(pool[data.readUnsignedShort()]).append('(');
+        for (int i = data.readUnsignedShort(); i > 0; i--) {
+            out.append(pool[data.readUnsignedShort()]).append('=');
+            elementValue(data, pool, out);
+            if (i > 1) out.append(',');
+        }
+        out.append(')');
+    }
+
+    private static void elementValue(DataInputStream data, Object[] pool, StringBuilder out) throws IOException {
+        int tag = data.readUnsignedByte();
+        switch (tag) {
+        case 'e':
+            out.append(pool[data.readUnsignedShort()]).append('.').append(pool[data.readUnsignedShort()]);
+            break;
+        case 'c':
+            out.append(pool[data.readUnsignedShort()]).append(".class");
+            break;
+        case '@':
+            annotation(data, pool, out);
+            break;
+        case '[':
+            out.append('{');
+            for (int i = data.readUnsignedShort(); i > 0; i--) {
+                elementValue(data, pool, out);
+                if (i > 1) out.append(',');
+            }
+            out.append('}');
+            break;
+        case 's':
+            out.append('"').append(pool[data.readUnsignedShort()]).append('"');
+            break;
+        default:
+            out.append((char) tag).append(pool[data.readUnsignedShort()]);
+        }
+    }
+
+    private static String className(Object[] pool, int index) {
+        return (String) pool[((ClassRef) pool[index]).name()];
+    }
+
+    private static void descriptorClasses(String descriptor, Set<String> references) {
+        Matcher m = DESCRIPTOR_CLASS.matcher(descriptor);
+        while (m.find()) {
+            references.add(m.group(1));
+        }
+    }
+
+    private static String digest(List<String> lines) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (String line : lines) {
+                md.update(line.getBytes(StandardCharsets.UTF_8));
+                md.update((byte) '\n');
+            }
+            return HEX.formatHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package org.copalis.jam.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+
+/**
+ * An index of the contents of the jar files and directories on a class path.
+ * <p>
+ * Jar files stay open and their package listings are kept in memory,
+ * so that compilations in the same process do not re-read the central directories of the same jars.
+ * A jar file is re-read if its size or modification time changes.
+ * Directories are listed each time, since they usually contain the output of an earlier compilation.
+ * The open jar files are shared, so an index can be created by each of several concurrent compilations.
+ * Each index holds a reference to the jar files it uses until it is closed,
+ * and a jar file which has been replaced by a newer version is closed when no index uses it.
+ *
+ * @author gilesjb
+ */
+final class ClassPathIndex implements Closeable {
+    private static final Map<Path, Archive> archives = new ConcurrentHashMap<>();
+
+    /**
+     * The configuration file which declares the annotation processors provided by a class path entry
+     */
+    static final String PROCESSOR_SERVICE = "META-INF/services/javax.annotation.processing.Processor";
+
+    /**
+     * An open jar file, which is closed when it has been superseded and is no longer used
+     */
+    private static final class Archive {
+        final long size, modified;
+        final String uri;
+        final ZipFile zip;
+        final Map<String, List<String>> packages;
+        final boolean processors;
+        private int users = 1;
+        private boolean superseded;
+
+        /**
+         * Creates an archive, which is used by its creator
+         * @param size the length of the file when it was opened
+         * @param modified the modification time of the file when it was opened
+         * @param uri the prefix of the URIs of the jar file's entries
+         * @param zip the open file
+         * @param packages the names of the class and source file entries in each package
+         * @param processors true if the jar file declares annotation processors
+         */
+        Archive(long size, long modified, String uri, ZipFile zip, Map<String, List<String>> packages,
+                boolean processors) {
+            this.size = size;
+            this.modified = modified;
+            this.uri = uri;
+            this.zip = zip;
+            this.packages = packages;
+            this.processors = processors;
+        }
+
+        /**
+         * Adds a user of the archive
+         * @return false if the archive has been closed
+         */
+        synchronized boolean acquire() {
+            if (superseded && users == 0) return false;
+            users++;
+            return true;
+        }
+
+        /**
+         * Removes a user of the archive
+         */
+        synchronized void release() throws IOException {
+            if (--users == 0 && superseded) zip.close();
+        }
+
+        /**
+         * Marks the archive as replaced by a newer version of the jar file
+         */
+        synchronized void supersede() throws IOException {
+            superseded = true;
+            if (users == 0) zip.close();
+        }
+    }
+
+    /**
+     * The directories, as {@link Path} objects, and {@link Archive archives} on the class path
+     */
+    private final List<Object> entries = new ArrayList<>();
+
+    /**
+     * Creates an index of a class path, opening any jar files which are not already open.
+     * Entries which do not exist are ignored.
+     * @param classpath the entries of the class path
+     * @throws IOException if a jar file cannot be read
+     */
+    ClassPathIndex(List<Path> classpath) throws IOException {
+        try {
+            for (Path entry : classpath) {
+                if (Files.isDirectory(entry)) {
+                    entries.add(entry);
+                } else if (Files.isRegularFile(entry)) {
+                    entries.add(archive(entry));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Determines whether a jar file declares annotation processors,
+     * using the open jar file if its size and modification time have not changed
+     * @param jar the path of the jar file
+     * @return true if the jar file has a processor service configuration file
+     * @throws IOException if the jar file cannot be read
+     */
+    static boolean declaresProcessors(Path jar) throws IOException {
+        Archive archive = archive(jar);
+        try {
+            return archive.processors;
+        } finally {
+            archive.release();
+        }
+    }
+
+    /**
+     * Releases the jar files used by this index, closing the ones which have been superseded
+     */
+    @Override public void close() throws IOException {
+        for (Object entry : entries) {
+            if (entry instanceof Archive archive) archive.release();
+        }
+        entries.clear();
+    }
+
+    /**
+     * A class or source file in a jar file or directory on the class path
+     */
+    static final class Entry implements JavaFileObject {
+        final String binaryName;
+        private final URI uri;
+        private final Kind kind;
+        private final ZipFile zip;
+        private final String entryName;
+
+        Entry(URI uri, Kind kind, String binaryName, ZipFile zip, String entryName) {
+            this.uri = uri;
+            this.kind = kind;
+            this.binaryName = binaryName;
+            this.zip = zip;
+            this.entryName = entryName;
+        }
+
+        @Override public URI toUri() {
+            return uri;
+        }
+
+        @Override public String getName() {
+            return Objects.isNull(zip) ? Path.of(uri).toString() : zip.getName() + '(' + entryName + ')';
+        }
+
+        @Override public Kind getKind() {
+            return kind;
+        }
+
+        @Override public boolean isNameCompatible(String simpleName, Kind kind) {
+            return kind == this.kind && (binaryName.equals(simpleName) || binaryName.endsWith('.' + simpleName));
+        }
+
+        @Override public NestingKind getNestingKind() {
+            return null;
+        }
+
+        @Override public Modifier getAccessLevel() {
+            return null;
+        }
+
+        @Override public InputStream openInputStream() throws IOException {
+            return Objects.isNull(zip) ? Files.newInputStream(Path.of(uri)) : zip.getInputStream(zip.getEntry(entryName));
+        }
+
+        @Override public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
+            return new InputStreamReader(openInputStream(), Charset.defaultCharset());
+        }
+
+        @Override public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+            try (InputStream in = openInputStream()) {
+                return new String(in.readAllBytes(), Charset.defaultCharset());
+            }
+        }
+
+        @Override public OutputStream openOutputStream() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override public Writer openWriter() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override public long getLastModified() {
+            return Objects.isNull(zip) ? new File(uri).lastModified() : zip.getEntry(entryName).getTime();
+        }
+
+        @Override public boolean delete() {
+            return false;
+        }
+
+        @Override public String toString() {
+            return getName();
+        }
+    }
+
+    /**
+     * Lists the files in a package
+     * @param packageName the name of the package
+     * @param kinds the kinds of file to list
+     * @param recurse true if the files in subpackages should be listed too
+     * @return the files, in class path order
+     * @throws IOException if an IO exception occurs
+     */
+    List<JavaFileObject> list(String packageName, Set<Kind> kinds, boolean recurse) throws IOException {
+        List<JavaFileObject> files = new ArrayList<>();
+        for (Object entry : entries) {
+            if (entry instanceof Path dir) {
+                listDirectory(dir, packageName, kinds, recurse, files);
+            } else if (recurse) {
+                Archive archive = (Archive) entry;
+                archive.packages.forEach((pkg, names) -> {
+                    if (pkg.equals(packageName) || packageName.isEmpty() || pkg.startsWith(packageName + '.')) {
+                        listArchive(archive, names, kinds, files);
+                    }
+                });
+            } else {
+                Archive archive = (Archive) entry;
+                listArchive(archive, archive.packages.getOrDefault(packageName, List.of()), kinds, files);
+            }
+        }
+        return files;
+    }
+
+    private static void listArchive(Archive archive, List<String> names, Set<Kind> kinds,
+            List<JavaFileObject> files) {
+        for (String name : names) {
+            Kind kind = kind(name);
+            if (!kinds.contains(kind)) continue;
+            String binaryName = name.substring(0, name.length() - kind.extension.length()).replace('/', '.');
+            files.add(new Entry(URI.create(archive.uri + name), kind, binaryName, archive.zip, name));
+        }
+    }
+
+    private static void listDirectory(Path dir, String packageName, Set<Kind> kinds, boolean recurse,
+            List<JavaFileObject> files) throws IOException {
+        Path pkg = dir.resolve(packageName.replace('.', File.separatorChar));
+        if (!Files.isDirectory(pkg)) return;
+        try (Stream<Path> paths = recurse ? Files.walk(pkg) : Files.list(pkg)) {
+            for (Path path : paths.toList()) {
+                Kind kind = kind(path.getFileName().toString());
+                if (!kinds.contains(kind) || !Files.isRegularFile(path)) continue;
+                String relative = dir.relativize(path).toString();
+                String binaryName = relative.substring(0, relative.length() - kind.extension.length())
+                        .replace(File.separatorChar, '.');
+                files.add(new Entry(path.toUri(), kind, binaryName, null, null));
+            }
+        }
+    }
+
+    private static Kind kind(String name) {
+        return name.endsWith(".class") && !name.endsWith("module-info.class") ? Kind.CLASS
+                : name.endsWith(".java") ? Kind.SOURCE : Kind.OTHER;
+    }
+
+    /**
+     * Gets an open jar file, opening it if it has not been opened or has been modified since
+     * @param jar the path of the jar file
+     * @return the open jar file and its package listings, which must be released by the caller
+     * @throws IOException if the jar file cannot be read
+     */
+    private static Archive archive(Path jar) throws IOException {
+        Path path = jar.toAbsolutePath().normalize();
+        File file = path.toFile();
+        long size = file.length(), modified = file.lastModified();
+        Archive archive = archives.get(path);
+        if (Objects.nonNull(archive) && archive.size == size && archive.modified == modified && archive.acquire()) {
+            return archive;
+        }
+
+        ZipFile zip = new ZipFile(file);
+        Map<String, List<String>> packages = new HashMap<>();
+        for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (entry.isDirectory() || name.startsWith("META-INF/") || kind(name) == Kind.OTHER) continue;
+            int split = name.lastIndexOf('/');
+            String pkg = split < 0 ? "" : name.substring(0, split).replace('/', '.');
+            packages.computeIfAbsent(pkg, k -> new ArrayList<>()).add(name);
+        }
+        archive = new Archive(size, modified, "jar:" + path.toUri() + "!/", zip, packages,
+                Objects.nonNull(zip.getEntry(PROCESSOR_SERVICE)));
+        // a replaced archive stays open while a concurrent compilation might be reading it
+        Archive replaced = archives.put(path, archive);
+        if (Objects.nonNull(replaced)) replaced.supersede();
+        return archive;
+    }
+}
@@ -1,18 +1,34 @@
 package org.copalis.jam.util;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
 import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
 
 import javax.tools.DocumentationTool;
 import javax.tools.FileObject;
 import javax.tools.ForwardingJavaFileManager;
+import javax.tools.ForwardingJavaFileObject;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.JavaFileObject.Kind;
 import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
 import javax.tools.ToolProvider;
 
 /**
@@ -26,8 +42,7 @@ public class Compiler {
     private static final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
     private static final DocumentationTool documenter = ToolProvider.getSystemDocumentationTool();
 
-    private static final StandardJavaFileManager fileManager =
-            compiler.getStandardFileManager(null, null, null);
+    private static final List<String> CLASSPATH_OPTIONS = List.of("-cp", "-classpath", "--class-path");
 
     /**
      * Compiles Java source files
@@ -36,39 +51,277 @@ public class Compiler {
      * @return a List of URIs of the output class files
      */
     public static List<URI> compile(Iterable<? extends File> sourceFiles, Iterable<String> options) {
-
         List<URI> outputClasses = new LinkedList<>();
+        compile(sourceFiles, options, (source, output) -> outputClasses.add(output));
+        return outputClasses;
+    }
+
+    /**
+     * Compiles Java source files, keeping the generated class files in memory
+     * so that they can be written to an archive without being read back from disk
+     * @param sourceFiles the Java files to compile
+     * @param options options to be passed to javac
+     * @param writeThrough true if the class files should also be written to disk,
+     * in the directory specified by the {@code -d} option
+     * @return the contents of the class files, by path relative to the output directory, in path order
+     */
+    public static Map<String, byte[]> compileInMemory(Iterable<? extends File> sourceFiles,
+            Iterable<String> options, boolean writeThrough) {
+        Map<String, byte[]> classes = new TreeMap<>();
+        compile(sourceFiles, options, (className, sibling, file) -> new ForwardingJavaFileObject<>(file) {
+            @Override public OutputStream openOutputStream() throws IOException {
+                OutputStream disk = writeThrough ? super.openOutputStream() : null;
+                return new ByteArrayOutputStream() {
+                    @Override public void close() throws IOException {
+                        synchronized (classes) {
+                            classes.put(className.replace('.', '/') + ".class", toByteArray());
+                        }
+                        if (Objects.nonNull(disk)) {
+                            try (disk) {
+                                writeTo(disk);
+                            }
+                        }
+                    }
+                };
+            }
+        });
+        return classes;
+    }
+
+    /**
+     * Compiles Java source files, reporting which source file each class file was generated from.
+     * The class path is read from the {@link ClassPathIndex}, which is shared between compilations.
+     * Each compilation has its own file manager, so compilations can run concurrently.
+     * @param sourceFiles the Java files to compile
+     * @param options options to be passed to java
+     * @param outputs a consumer of the URIs of each source file, which is null if the class has no source file,
+     * and the class file generated from it
+     */
+    static void compile(Iterable<? extends File> sourceFiles, Iterable<String> options,
+            BiConsumer<URI, URI> outputs) {
+        compile(sourceFiles, options, (className, sibling, file) -> {
+            outputs.accept(Objects.isNull(sibling) ? null : sibling.toUri(), file.toUri());
+            return file;
+        });
+    }
+
+    /**
+     * Intercepts the class files generated by a compilation
+     */
+    private interface ClassOutput {
+        /**
+         * Gets the file object that a class is written to
+         * @param className the binary name of the class
+         * @param sibling the source file of the class, or null
+         * @param file the file object provided by the file manager
+         * @return the file object that javac should write the class to
+         */
+        JavaFileObject output(String className, FileObject sibling, JavaFileObject file);
+    }
+
+    private static void compile(Iterable<? extends File> sourceFiles, Iterable<String> options, ClassOutput outputs) {
+        List<String> javacOptions = new ArrayList<>();
+        List<Path> classpath = classpath(options, javacOptions);
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+                JavaFileManager manager = new IndexedFileManager(fileManager, classpath) {
+                    @Override public JavaFileObject getJavaFileForOutput(
+                            Location location, String className, Kind kind, FileObject sibling) throws IOException {
 
-        JavaFileManager outputs = new ForwardingJavaFileManager<JavaFileManager>(fileManager) {
-            @Override public JavaFileObject getJavaFileForOutput(
-                    Location location, String className, Kind kind, FileObject sibling) throws IOException {
+                        JavaFileObject file = super.getJavaFileForOutput(location, className, kind, sibling);
+                        return file.getKind() == JavaFileObject.Kind.CLASS
+                                ? outputs.output(className, sibling, file) : file;
+                    }
+                }) {
+            if (!compiler
+                .getTask(
+                        null, manager, null, javacOptions, null,
+                        fileManager.getJavaFileObjectsFromFiles(sourceFiles))
+                .call()) {
+                throw new RuntimeException("Compilation failed");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-                JavaFileObject file = super.getJavaFileForOutput(location, className, kind, sibling);
-                if (file.getKind() == JavaFileObject.Kind.CLASS) {
-                    outputClasses.add(file.toUri());
+    /**
+     * Separates the class path from the other options
+     * @param options compiler options
+     * @param others receives the options other than the class path
+     * @return the entries of the class path, or null if the options do not specify one
+     */
+    private static List<Path> classpath(Iterable<String> options, List<String> others) {
+        List<Path> classpath = null;
+        for (Iterator<String> it = options.iterator(); it.hasNext();) {
+            String option = it.next();
+            String value = CLASSPATH_OPTIONS.contains(option) && it.hasNext() ? it.next()
+                    : option.startsWith("--class-path=") ? option.substring(option.indexOf('=') + 1)
+                    : null;
+            if (Objects.isNull(value)) {
+                others.add(option);
+            } else {
+                classpath = new ArrayList<>();
+                for (String entry : value.split(File.pathSeparator)) {
+                    classpath.add(Path.of(entry.isEmpty() ? "." : entry));
                 }
-                return file;
             }
-        };
+        }
+        return classpath;
+    }
+
+    /**
+     * A file manager which reads the class path from the {@link ClassPathIndex}.
+     * Closing it releases the index and closes the class loader it created for the class path.
+     */
+    private static class IndexedFileManager extends ForwardingJavaFileManager<StandardJavaFileManager>
+            implements StandardJavaFileManager {
+        private final List<Path> classpath;
+        private final ClassPathIndex index;
+        private URLClassLoader loader;
 
-        if (!compiler
-            .getTask(
-                    null, outputs, null, options, null,
-                    fileManager.getJavaFileObjectsFromFiles(sourceFiles))
-            .call()) {
-            throw new RuntimeException("Compilation failed");
+        IndexedFileManager(StandardJavaFileManager fileManager, List<Path> classpath) throws IOException {
+            super(fileManager);
+            this.classpath = classpath;
+            this.index = Objects.isNull(classpath) ? null : new ClassPathIndex(classpath);
         }
 
-        return outputClasses;
+        private boolean indexed(Location location) {
+            return location == StandardLocation.CLASS_PATH && Objects.nonNull(index);
+        }
+
+        @Override public boolean hasLocation(Location location) {
+            return indexed(location) || super.hasLocation(location);
+        }
+
+        @Override public Iterable<JavaFileObject> list(Location location, String packageName, Set<Kind> kinds,
+                boolean recurse) throws IOException {
+            return indexed(location)
+                    ? index.list(packageName, kinds, recurse)
+                    : super.list(location, packageName, kinds, recurse);
+        }
+
+        @Override public String inferBinaryName(Location location, JavaFileObject file) {
+            return file instanceof ClassPathIndex.Entry entry ? entry.binaryName : super.inferBinaryName(location, file);
+        }
+
+        @Override public boolean isSameFile(FileObject a, FileObject b) {
+            return a instanceof ClassPathIndex.Entry || b instanceof ClassPathIndex.Entry
+                    ? a.toUri().equals(b.toUri()) : super.isSameFile(a, b);
+        }
+
+        @Override public boolean contains(Location location, FileObject file) throws IOException {
+            return file instanceof ClassPathIndex.Entry ? indexed(location) : super.contains(location, file);
+        }
+
+        @Override public synchronized ClassLoader getClassLoader(Location location) {
+            if (!indexed(location)) return super.getClassLoader(location);
+            if (Objects.nonNull(loader)) return loader;
+            URL[] urls = new URL[classpath.size()];
+            try {
+                for (int i = 0; i < urls.length; i++) {
+                    urls[i] = classpath.get(i).toUri().toURL();
+                }
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException(e);
+            }
+            return loader = new URLClassLoader(urls, getClass().getClassLoader());
+        }
+
+        @Override public synchronized void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                try {
+                    if (Objects.nonNull(index)) index.close();
+                } finally {
+                    if (Objects.nonNull(loader)) loader.close();
+                }
+            }
+        }
+
+        @Override public Iterable<? extends JavaFileObject> getJavaFileObjectsFromFiles(
+                Iterable<? extends File> files) {
+            return fileManager.getJavaFileObjectsFromFiles(files);
+        }
+
+        @Override public Iterable<? extends JavaFileObject> getJavaFileObjectsFromPaths(
+                Collection<? extends Path> paths) {
+            return fileManager.getJavaFileObjectsFromPaths(paths);
+        }
+
+        @Override public Iterable<? extends JavaFileObject> getJavaFileObjects(File... files) {
+            return fileManager.getJavaFileObjects(files);
+        }
+
+        @Override public Iterable<? extends JavaFileObject> getJavaFileObjects(Path... paths) {
+            return fileManager.getJavaFileObjects(paths);
+        }
+
+        @Override public Iterable<? extends JavaFileObject> getJavaFileObjectsFromStrings(Iterable<String> names) {
+            return fileManager.getJavaFileObjectsFromStrings(names);
+        }
+
+        @Override public Iterable<? extends JavaFileObject> getJavaFileObjects(String... names) {
+            return fileManager.getJavaFileObjects(names);
+        }
+
+        @Override public void setLocation(Location location, Iterable<? extends File> files) throws IOException {
+            fileManager.setLocation(location, files);
+        }
+
+        @Override public void setLocationFromPaths(Location location, Collection<? extends Path> paths)
+                throws IOException {
+            fileManager.setLocationFromPaths(location, paths);
+        }
+
+        @Override public void setLocationForModule(Location location, String moduleName,
+                Collection<? extends Path> paths) throws IOException {
+            fileManager.setLocationForModule(location, moduleName, paths);
+        }
+
+        @Override public Iterable<? extends File> getLocation(Location location) {
+            return indexed(location) ? classpath.stream().map(Path::toFile).toList() : fileManager.getLocation(location);
+        }
+
+        @Override public Iterable<? extends Path> getLocationAsPaths(Location location) {
+            return indexed(location) ? classpath : fileManager.getLocationAsPaths(location);
+        }
+
+        @Override public Path asPath(FileObject file) {
+            if (!(file instanceof ClassPathIndex.Entry)) return fileManager.asPath(file);
+            if (!file.toUri().getScheme().equals("file")) throw new IllegalArgumentException(file.getName());
+            return Path.of(file.toUri());
+        }
+
+        @Override public void setPathFactory(PathFactory factory) {
+            fileManager.setPathFactory(factory);
+        }
     }
 
     /**
-     * Generates JavaDoc
+     * Generates JavaDoc.
+     * The class path is read from the {@link ClassPathIndex} which is shared with compilations.
      * @param options options to be passed to javadoc
      */
     public static void javadoc(String... options) {
-        if (documenter.run(null, null, null, options) != 0) {
-            throw new RuntimeException("JavaDoc failed");
+        List<String> others = new ArrayList<>(), javadocOptions = new ArrayList<>();
+        List<Path> classpath = classpath(List.of(options), others);
+        try (StandardJavaFileManager fileManager = documenter.getStandardFileManager(null, null, null)) {
+            // javadoc only passes options such as -sourcepath to its own file manager implementation
+            for (Iterator<String> it = others.iterator(); it.hasNext();) {
+                String option = it.next();
+                if (option.equals("-d") || fileManager.isSupportedOption(option) < 0
+                        || !fileManager.handleOption(option, it)) {
+                    javadocOptions.add(option);
+                }
+            }
+            try (JavaFileManager manager = new IndexedFileManager(fileManager, classpath)) {
+                if (!documenter.getTask(null, manager, null, null, javadocOptions, null).call()) {
+                    throw new RuntimeException("JavaDoc failed");
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 }
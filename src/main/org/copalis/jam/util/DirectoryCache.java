@@ -0,0 +1,268 @@
+package org.copalis.jam.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.copalis.jam.memo.CacheFormat;
+import org.copalis.jam.memo.Invocation;
+import org.copalis.jam.memo.Mutable;
+import org.copalis.jam.memo.Result;
+import org.copalis.jam.memo.SharedCache;
+
+/**
+ * A shared cache of build outputs in a directory, which may be shared by several workspaces
+ * or mounted from a network file system.
+ * <p>
+ * Entries are keyed by a digest of the method call signature and the contents of its input files,
+ * so a result computed in one workspace can be reused in another that has identical inputs.
+ * Paths inside the workspace directory are stored relative to it.
+ * The contents of output files are stored once per distinct content, under their own digests.
+ * Only results whose value is a file or a set of files are shared,
+ * and only if all their dependencies are files.
+ * The digests of files are reused for the lifetime of the cache object unless the files' metadata changes,
+ * and the key computed when a result is looked up is reused when it is stored.
+ * <p>
+ * Entries and blobs are written to temporary files and moved into place,
+ * so concurrent builds never see partially written files.
+ * Errors reading or writing the cache directory are treated as cache misses.
+ *
+ * @author gilesjb
+ */
+public final class DirectoryCache implements SharedCache {
+    private static final int FORMAT = 2;
+    private static final String ALGORITHM = "SHA-256";
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Path directory, base;
+    private final FileStates digests = new FileStates();
+    private final Map<Invocation, String> keys = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a shared cache
+     * @param directory the location of the cache directory, which is created if it does not exist
+     * @param base the workspace directory
+     */
+    public DirectoryCache(Path directory, Path base) {
+        this.directory = directory.toAbsolutePath();
+        this.base = base.toAbsolutePath().normalize();
+    }
+
+    @Override public boolean shares(Class<?> type) {
+        return File.class.isAssignableFrom(type)
+                || Mutable.class.isAssignableFrom(type) && Iterable.class.isAssignableFrom(type);
+    }
+
+    @Override public Result fetch(Invocation signature, Set<Mutable> inputs) {
+        try {
+            String key = key(signature, inputs);
+            if (Objects.isNull(key)) return null;
+            keys.put(signature, key);
+            Path entry = location("keys", key);
+            if (!Files.isRegularFile(entry)) return null;
+
+            Result result;
+            List<File> outputs;
+            List<String> blobs = new ArrayList<>();
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(entry))) {
+                if (in.readInt() != FORMAT) return null;
+                result = (Result) CacheFormat.decode(in.readNBytes(in.readInt()), base);
+                for (int i = in.readInt(); i > 0; i--) {
+                    Object dependency = CacheFormat.decode(in.readNBytes(in.readInt()), base);
+                    if (!(dependency instanceof Mutable m) || !in.readUTF().equals(digest(m))) return null;
+                }
+                outputs = files(result.value());
+                if (Objects.isNull(outputs) || in.readInt() != outputs.size()) return null;
+                for (int i = 0; i < outputs.size(); i++) {
+                    blobs.add(in.readUTF());
+                }
+            }
+            for (int i = 0; i < outputs.size(); i++) {
+                restore(location("blobs", blobs.get(i)), outputs.get(i), blobs.get(i));
+            }
+            keys.remove(signature);
+            return result;
+        } catch (IOException | UncheckedIOException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    @Override public void store(Result result, Set<Mutable> inputs) {
+        try {
+            String key = keys.remove(result.signature());
+            List<File> outputs = files(result.value());
+            if (Objects.isNull(outputs) || outputs.isEmpty()) return;
+            if (Objects.isNull(key)) key = key(result.signature(), inputs);
+            if (Objects.isNull(key)) return;
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(FORMAT);
+            write(out, CacheFormat.encode(result, base));
+
+            List<Mutable> dependencies = result.dependencies().stream()
+                    .filter(m -> !inputs.contains(m) && m != result.value())
+                    .toList();
+            out.writeInt(dependencies.size());
+            for (Mutable m : dependencies) {
+                String digest = digest(m);
+                if (Objects.isNull(digest)) return;
+                write(out, CacheFormat.encode(m, base));
+                out.writeUTF(digest);
+            }
+
+            out.writeInt(outputs.size());
+            for (File file : outputs) {
+                if (!file.isFile()) return;
+                String digest = digest(file);
+                Path blob = location("blobs", digest);
+                if (!Files.exists(blob)) {
+                    try (InputStream content = Files.newInputStream(file.toPath())) {
+                        publish(blob, content);
+                    }
+                }
+                out.writeUTF(digest);
+            }
+            out.flush();
+            publish(location("keys", key), new ByteArrayInputStream(bytes.toByteArray()));
+        } catch (IOException | UncheckedIOException e) {
+            // the result is not shared
+        }
+    }
+
+    private String key(Invocation signature, Set<Mutable> inputs) throws IOException {
+        MessageDigest md = messageDigest();
+        md.update(CacheFormat.encode(signature, base));
+        for (Mutable input : inputs) {
+            String digest = digest(input);
+            if (Objects.isNull(digest)) return null;
+            md.update(CacheFormat.encode(input, base));
+            md.update(digest.getBytes());
+        }
+        return HEX.formatHex(md.digest());
+    }
+
+    /**
+     * Gets the files that make up a value
+     * @param value a method call result
+     * @return the files in the value's iteration order, or null if the value is not a file or set of files
+     * inside the workspace
+     */
+    private List<File> files(Object value) {
+        List<File> files = new ArrayList<>();
+        if (value instanceof File file) {
+            files.add(file);
+        } else if (value instanceof Mutable && value instanceof Iterable<?> items) {
+            for (Object item : items) {
+                if (!(item instanceof File file)) return null;
+                files.add(file);
+            }
+        } else {
+            return null;
+        }
+        for (File file : files) {
+            if (!base.resolve(file.toPath()).normalize().startsWith(base)) return null;
+        }
+        return files;
+    }
+
+    /**
+     * Gets a digest of the contents of a mutable object
+     * @param m a file or set of files
+     * @return the digest, or null if the object's contents cannot be digested
+     */
+    private String digest(Mutable m) throws IOException {
+        List<File> files = files(m);
+        if (Objects.isNull(files)) return null;
+        MessageDigest md = messageDigest();
+        for (File file : files) {
+            md.update(base.relativize(base.resolve(file.toPath()).normalize()).toString().getBytes());
+            md.update((byte) 0);
+            if (file.isFile()) {
+                md.update(HEX.parseHex(digest(file)));
+            } else if (file.exists()) {
+                return null;
+            }
+        }
+        return HEX.formatHex(md.digest());
+    }
+
+    private String digest(File file) throws IOException {
+        FileStates states = Objects.requireNonNullElse(FileStates.active(), digests);
+        String digest = states.digest(file.toPath());
+        if (Objects.nonNull(digest)) return digest;
+        MessageDigest md = messageDigest();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            byte[] buffer = new byte[8192];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                md.update(buffer, 0, read);
+            }
+        }
+        return HEX.formatHex(md.digest());
+    }
+
+    private static MessageDigest messageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void write(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private Path location(String kind, String digest) {
+        return directory.resolve(kind).resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    /**
+     * Copies a blob to an output file unless the file already has the blob's contents
+     */
+    private void restore(Path blob, File file, String digest) throws IOException {
+        if (file.isFile() && digest(file).equals(digest)) return;
+        Path target = file.toPath().toAbsolutePath();
+        Files.createDirectories(target.getParent());
+        try (InputStream content = Files.newInputStream(blob)) {
+            publish(target, content);
+        }
+    }
+
+    /**
+     * Writes a file by moving a temporary file into place
+     */
+    private static void publish(Path target, InputStream content) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), ".", ".tmp");
+        try {
+            Files.copy(content, temp, StandardCopyOption.REPLACE_EXISTING);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.copalis.jam.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A database of file content digests, keyed by path, which avoids hashing files whose
+ * modification time, size and inode are unchanged since they were last hashed.
+ * <p>
+ * When a database is {@link #activate(FileStates) activated}, the state of a file is the digest of its contents
+ * rather than its modification time, so touching a file or checking it out again does not make it modified,
+ * but an edit made in the same second as a build does.
+ * A file whose modification time is too close to the time it was hashed is always hashed again,
+ * because it could be modified again without its metadata changing.
+ *
+ * @author gilesjb
+ */
+public final class FileStates {
+    private static final int FORMAT = 1;
+    private static final String ALGORITHM = "SHA-256";
+    private static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final HexFormat HEX = HexFormat.of();
+
+    private static volatile FileStates active;
+
+    private record Entry(long modified, long size, String key, String digest) {
+        boolean matches(BasicFileAttributes attrs) {
+            return modified == attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                    && size == attrs.size() && key.equals(fileKey(attrs));
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean modified;
+
+    /**
+     * Gets the active database
+     * @return the database that file states are determined by, or null if file states are modification times
+     */
+    public static FileStates active() {
+        return active;
+    }
+
+    /**
+     * Sets the active database
+     * @param states the database that file states are determined by,
+     * or null if file states should be modification times
+     */
+    public static void activate(FileStates states) {
+        active = states;
+    }
+
+    /**
+     * Loads a database from a file
+     * @param file the file, which need not exist
+     * @return the database, which is empty if the file does not exist or has an unsupported format
+     */
+    public static FileStates load(Path file) {
+        FileStates states = new FileStates();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FORMAT) return states;
+            for (int i = in.readInt(); i > 0; i--) {
+                String path = in.readUTF();
+                states.entries.put(path, new Entry(in.readLong(), in.readLong(), in.readUTF(), in.readUTF()));
+            }
+        } catch (NoSuchFileException e) {
+            // no saved states
+        } catch (IOException e) {
+            states.entries.clear();
+            states.modified = true;
+        }
+        return states;
+    }
+
+    /**
+     * Saves this database, without the entries for files which no longer exist, if it has been modified
+     * @param file the file to save the database in
+     */
+    public void save(Path file) {
+        if (!modified) return;
+        entries.keySet().removeIf(path -> !Files.isRegularFile(Path.of(path)));
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(FORMAT);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeLong(entry.modified());
+                    out.writeLong(entry.size());
+                    out.writeUTF(entry.key());
+                    out.writeUTF(entry.digest());
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        modified = false;
+    }
+
+    /**
+     * Gets the digest of a file's contents, only hashing the file if its metadata has changed
+     * @param file the path of the file
+     * @return the hexadecimal SHA-256 digest of the file, or null if the file is not a regular file
+     */
+    public String digest(Path file) {
+        String path = file.toAbsolutePath().normalize().toString();
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) return null;
+            Entry entry = entries.get(path);
+            if (Objects.nonNull(entry) && entry.matches(attrs)) return entry.digest();
+
+            long hashed = System.currentTimeMillis();
+            String digest = hash(file);
+            long mtime = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            if (TimeUnit.MILLISECONDS.toNanos(hashed) - mtime > RACY_NANOS) {
+                entries.put(path, new Entry(mtime, attrs.size(), fileKey(attrs), digest));
+                modified = true;
+            } else if (Objects.nonNull(entries.remove(path))) {
+                modified = true;
+            }
+            return digest;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Hashes the files whose metadata has changed in parallel, so that the digests of the files
+     * can then be obtained without delay
+     * @param files the paths of the files
+     */
+    public void refresh(Collection<Path> files) {
+        files.parallelStream().forEach(this::digest);
+    }
+
+    /**
+     * Gets the number of files in the database
+     * @return the number of files
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private static String fileKey(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        return Objects.isNull(key) ? "" : key.toString();
+    }
+
+    private static String hash(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest md = MessageDigest.getInstance(ALGORITHM);
+            byte[] buffer = new byte[8192];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                md.update(buffer, 0, read);
+            }
+            return HEX.formatHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
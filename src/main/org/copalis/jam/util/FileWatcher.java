@@ -0,0 +1,356 @@
+package org.copalis.jam.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * An in-memory index of the files in a directory tree, which is kept up to date by a {@link WatchService}.
+ * <p>
+ * Only the directories which have reported events since the index was last consulted are listed again,
+ * so a long-running build process can determine the state of unchanged source trees without walking them.
+ * Queries are answered for whole file sets at once, because each query costs more than getting the attributes
+ * of a single file.
+ * Before each query the watcher creates a <i>cookie</i> file in a temporary directory
+ * and waits for its event to be delivered,
+ * which guarantees that the events of all modifications made before the query have been seen.
+ * If the watch service overflows or a cookie is not seen in time, the whole tree is scanned again.
+ * <p>
+ * Hidden directories and excluded directories such as build outputs are not watched,
+ * so queries which include them return null and the caller walks the files instead.
+ * If a directory cannot be watched, for example because the operating system's limit on watches is reached,
+ * the watcher stops and deactivates itself.
+ *
+ * @author gilesjb
+ */
+public final class FileWatcher implements Closeable {
+    private static final long SYNC_TIMEOUT_MILLIS = 1000;
+
+    private static volatile FileWatcher active;
+
+    /**
+     * A directory entry
+     * @param directory true if the entry is a directory, false if it is a regular file or a link to one
+     * @param modified the last modification time in milliseconds
+     */
+    private record Entry(boolean directory, long modified) { }
+
+    private final Path root, cookies;
+    private final WatchService service;
+    private final Set<Path> excluded;
+    private final Set<Path> skipped = new HashSet<>();
+    private final Map<Path, WatchKey> keys = new HashMap<>();
+    private final Map<Path, Map<String, Entry>> listings = new HashMap<>();
+    private final Set<Path> dirty = new HashSet<>();
+    private final Set<String> seen = new HashSet<>();
+    private long cookie;
+    private boolean failed;
+
+    /**
+     * Gets the active watcher
+     * @return the watcher that file states and file sets are determined by, or null if there is none
+     */
+    public static FileWatcher active() {
+        return active;
+    }
+
+    /**
+     * Sets the active watcher
+     * @param watcher the watcher that file states and file sets are determined by, or null
+     */
+    public static void activate(FileWatcher watcher) {
+        active = watcher;
+    }
+
+    /**
+     * Starts watching a directory tree
+     * @param root the root directory of the tree
+     * @return a watcher for the tree, or null if the tree cannot be watched
+     * @see #watch(Path, Collection)
+     */
+    public static FileWatcher watch(Path root) {
+        return watch(root, List.of());
+    }
+
+    /**
+     * Starts watching a directory tree, except for hidden directories and some excluded directories
+     * @param root the root directory of the tree
+     * @param excluded the directories which are not watched, such as build output directories
+     * @return a watcher for the tree,
+     * or null if the platform's watch service does not receive events from the operating system
+     * or the tree cannot be watched
+     */
+    public static FileWatcher watch(Path root, Collection<Path> excluded) {
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+            if (service.getClass().getSimpleName().startsWith("Polling")) {
+                service.close();
+                return null;
+            }
+            Set<Path> exclusions = new HashSet<>();
+            excluded.forEach(dir -> exclusions.add(dir.toAbsolutePath().normalize()));
+            return new FileWatcher(root.toAbsolutePath().normalize(), service, exclusions);
+        } catch (IOException e) {
+            try {
+                if (Objects.nonNull(service)) service.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            return null;
+        }
+    }
+
+    private FileWatcher(Path root, WatchService service, Set<Path> excluded) throws IOException {
+        this.root = root;
+        this.service = service;
+        this.excluded = excluded;
+        this.cookies = Files.createTempDirectory("jam-watch");
+        cookies.toFile().deleteOnExit(); // a build server may be stopped without closing its watcher
+        try {
+            keys.put(cookies, register(cookies));
+            scan(root);
+        } catch (IOException e) {
+            Paths.rmDir(cookies);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the root directory of the watched tree
+     * @return the absolute path of the root directory
+     */
+    public Path root() {
+        return root;
+    }
+
+    /**
+     * Gets the regular files in a directory tree, in the same form as {@link Files#walk} would return them
+     * @param start the directory
+     * @return the paths of the regular files under the directory, or null if it is not in the watched tree
+     */
+    public synchronized Stream<Path> files(Path start) {
+        Path dir = watched(start);
+        if (Objects.isNull(dir) || !update()) return null;
+        for (Path skip : skipped) {
+            if (skip.startsWith(dir)) return null;
+        }
+        Entry entry = entry(dir);
+        if (Objects.isNull(entry)) return Stream.empty();
+        if (!entry.directory()) return Stream.of(start);
+
+        List<Path> files = new ArrayList<>();
+        collect(dir, start, files);
+        return files.stream();
+    }
+
+    /**
+     * Gets the modification times of files
+     * @param paths the paths of the files
+     * @return a map of the files in the watched tree to their modification times,
+     * which are 0 if the files do not exist
+     */
+    public synchronized Map<Path, Long> modificationTimes(Collection<Path> paths) {
+        Map<Path, Long> times = new LinkedHashMap<>();
+        if (!update()) return times;
+        for (Path path : paths) {
+            Path file = watched(path);
+            if (Objects.isNull(file)) continue;
+            Entry entry = entry(file);
+            times.put(path, Objects.isNull(entry) ? 0L : entry.modified());
+        }
+        return times;
+    }
+
+    @Override public synchronized void close() {
+        try {
+            service.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            Paths.rmDir(cookies);
+        }
+    }
+
+    private Path watched(Path path) {
+        Path abs = path.toAbsolutePath().normalize();
+        if (failed || !abs.startsWith(root)) return null;
+        for (Path skip : skipped) {
+            if (abs.startsWith(skip)) return null;
+        }
+        return abs;
+    }
+
+    private Entry entry(Path path) {
+        if (path.equals(root)) return new Entry(true, root.toFile().lastModified());
+        Map<String, Entry> listing = listings.get(path.getParent());
+        return Objects.isNull(listing) ? null : listing.get(path.getFileName().toString());
+    }
+
+    private void collect(Path dir, Path start, List<Path> files) {
+        Map<String, Entry> listing = listings.get(dir);
+        if (Objects.isNull(listing)) return;
+        listing.forEach((name, entry) -> {
+            if (entry.directory()) {
+                collect(dir.resolve(name), start.resolve(name), files);
+            } else {
+                files.add(start.resolve(name));
+            }
+        });
+    }
+
+    /**
+     * Waits for the events of all modifications made so far, and lists the directories which reported them again
+     * @return false if the watcher has stopped because a directory could not be watched
+     */
+    private boolean update() {
+        if (failed) return false;
+        String name = "cookie-" + cookie++;
+        Path file = cookies.resolve(name);
+        try {
+            Files.createFile(file);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SYNC_TIMEOUT_MILLIS);
+            while (!seen.remove(name)) {
+                WatchKey key = service.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (Objects.isNull(key)) {
+                    dirty.addAll(listings.keySet()); // events may have been lost
+                    break;
+                }
+                process(key);
+            }
+            for (WatchKey key; Objects.nonNull(key = service.poll()); ) {
+                process(key);
+            }
+            Files.deleteIfExists(file);
+            seen.clear();
+
+            List<Path> changed = new ArrayList<>(dirty);
+            dirty.clear();
+            for (Path dir : changed) {
+                if (listings.containsKey(dir)) scan(dir);
+            }
+            return true;
+        } catch (IOException e) {
+            // callers fall back to reading the file system
+            failed = true;
+            if (active == this) active = null;
+            listings.clear();
+            skipped.clear();
+            close();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void process(WatchKey key) {
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                dirty.addAll(listings.keySet());
+            } else if (dir.equals(cookies)) {
+                seen.add(event.context().toString());
+            } else {
+                dirty.add(dir);
+            }
+        }
+        if (!key.reset() && !dir.equals(cookies)) {
+            keys.remove(dir);
+            dirty.add(dir); // the directory was deleted or replaced, or can no longer be watched
+            if (Objects.nonNull(dir.getParent())) dirty.add(dir.getParent());
+        }
+    }
+
+    /**
+     * Lists a directory again, registering new subdirectories and forgetting deleted ones
+     * @param dir the directory
+     */
+    private void scan(Path dir) throws IOException {
+        Map<String, Entry> previous = listings.remove(dir), listing = new LinkedHashMap<>();
+        skipped.removeIf(skip -> skip.getParent().equals(dir));
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+            if (!keys.containsKey(dir)) keys.put(dir, register(dir));
+            for (Path child : children) {
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isDirectory() && (child.getFileName().toString().startsWith(".")
+                            || excluded.contains(child))) {
+                        skipped.add(child);
+                    } else if (attrs.isDirectory()) {
+                        listing.put(child.getFileName().toString(), new Entry(true, attrs.lastModifiedTime().toMillis()));
+                    } else if (attrs.isRegularFile() || Files.isRegularFile(child)) {
+                        listing.put(child.getFileName().toString(),
+                                new Entry(false, Files.getLastModifiedTime(child).toMillis()));
+                    }
+                } catch (NoSuchFileException e) {
+                    // deleted while listing; its event will follow
+                }
+            }
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            forget(dir);
+            return;
+        }
+        listings.put(dir, listing);
+        Map<String, Entry> parent = dir.equals(root) ? null : listings.get(dir.getParent());
+        if (Objects.nonNull(parent) && parent.containsKey(dir.getFileName().toString())) {
+            parent.put(dir.getFileName().toString(), new Entry(true, Files.getLastModifiedTime(dir).toMillis()));
+        }
+
+        // new subdirectories are scanned, and deleted ones forgotten
+        if (Objects.nonNull(previous)) {
+            previous.forEach((name, entry) -> {
+                Entry current = listing.get(name);
+                if (entry.directory() && (Objects.isNull(current) || !current.directory())) forget(dir.resolve(name));
+            });
+        }
+        for (Map.Entry<String, Entry> child : listing.entrySet()) {
+            Path sub = dir.resolve(child.getKey());
+            if (child.getValue().directory() && !listings.containsKey(sub)) scan(sub);
+        }
+    }
+
+    private void forget(Path dir) {
+        if (dir.equals(root)) {
+            listings.put(root, Map.of());
+            return;
+        }
+        Map<String, Entry> listing = listings.remove(dir);
+        skipped.removeIf(skip -> skip.getParent().equals(dir));
+        WatchKey key = keys.remove(dir);
+        if (Objects.nonNull(key)) key.cancel();
+        if (Objects.nonNull(listing)) {
+            listing.forEach((name, entry) -> {
+                if (entry.directory()) forget(dir.resolve(name));
+            });
+        }
+    }
+
+    private WatchKey register(Path dir) throws IOException {
+        return dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+}
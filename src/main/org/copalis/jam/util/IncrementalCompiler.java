@@ -0,0 +1,455 @@
+package org.copalis.jam.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * A Java compiler which only recompiles the source files that have changed since the previous compilation
+ * into the same directory, and the source files that depend on the API of classes which have changed.
+ * <p>
+ * The analysis of the previous compilation is stored in a file next to the output directory.
+ * It records which class files were generated from each source file,
+ * and the classes each class refers to and a digest of its API, which are read from the class files.
+ * The classes in directories on the class path are analyzed too,
+ * so that a change to the API of an upstream module recompiles only the source files that use it.
+ * <p>
+ * Everything is recompiled if there is no previous analysis, the compiler options have changed,
+ * the {@link ClassFile#fingerprint(Iterable) ABI fingerprint} of a jar file on the class path has changed,
+ * or the value of a compile-time constant has changed, because constants are copied into the classes that use them.
+ * Everything is also recompiled if annotation processors may run, either because processor options are given
+ * or because a class path entry declares a processor service, since their inputs and outputs cannot be tracked.
+ * A change to the API of a class is treated as a change to the API of all of its subclasses and implementations,
+ * because code which uses a subtype may be bound to members that it inherits.
+ * Class files generated from source files which have been changed or deleted are deleted before compiling.
+ *
+ * @author gilesjb
+ */
+public final class IncrementalCompiler {
+    private IncrementalCompiler() { }
+
+    private static final int FORMAT = 3;
+    private static final List<String> CLASSPATH_OPTIONS = List.of("-cp", "-classpath", "--class-path");
+    private static final List<String> PROCESSOR_OPTIONS = List.of("-processor", "-processorpath", "--processor-path",
+            "--processor-module-path");
+    private static final HexFormat HEX = HexFormat.of();
+
+    /**
+     * A class file generated from a source file
+     * @param path the path of the class file relative to the output directory
+     * @param type the summary of the class
+     */
+    private record Output(String path, ClassFile type) { }
+
+    /**
+     * The analysis of a compilation
+     * @param options the compiler options
+     * @param jars the modification stamps and ABI fingerprints of the files on the class path which are not directories
+     * @param upstream the API and constant digests of the classes in directories on the class path
+     * @param sources the digests of the compiled source files
+     * @param outputs the class files generated from each source file
+     */
+    private record Analysis(List<String> options, Map<String, String> jars, Map<String, String> upstream,
+            Map<String, String> sources, Map<String, List<Output>> outputs) { }
+
+    /**
+     * Compiles Java source files, only recompiling the ones affected by changes since the previous compilation
+     * @param sourceFiles the Java files to compile
+     * @param destination the directory that class files are written to
+     * @param options options to be passed to javac, excluding the {@code -d} option
+     * @return the URIs of all the class files generated from the source files
+     */
+    public static List<URI> compile(Iterable<? extends File> sourceFiles, Path destination, List<String> options) {
+        Path dest = destination.toAbsolutePath().normalize();
+        Path analysisFile = dest.resolveSibling(dest.getFileName() + ".analysis");
+        Analysis previous = load(analysisFile);
+
+        Map<String, File> sources = new LinkedHashMap<>();
+        for (File file : sourceFiles) {
+            sources.put(file.toPath().toAbsolutePath().normalize().toString(), file);
+        }
+        Map<String, String> digests = new HashMap<>();
+        sources.keySet().parallelStream().forEach(source -> {
+            String digest = digest(Path.of(source));
+            synchronized (digests) {
+                digests.put(source, digest);
+            }
+        });
+        List<String> classpath = classpath(options);
+        Map<String, String> jars = new TreeMap<>(), upstream = new HashMap<>();
+        Map<String, Set<String>> supertypes = new HashMap<>();
+        for (String entry : classpath) {
+            Path path = Path.of(entry).toAbsolutePath().normalize();
+            if (Files.isDirectory(path)) {
+                if (!path.equals(dest)) analyze(path, upstream, supertypes);
+            } else {
+                jars.put(path.toString(), jarState(path, Objects.isNull(previous) ? null : previous.jars()));
+            }
+        }
+
+        Analysis analysis = new Analysis(options, jars, upstream, digests, new HashMap<>());
+        Set<String> dirty = new LinkedHashSet<>(), changed = new HashSet<>();
+        boolean full = Objects.isNull(previous) || !previous.options().equals(options)
+                || !fingerprints(previous.jars()).equals(fingerprints(jars)) || previous.outputs().containsKey("")
+                || sources.keySet().stream().anyMatch(s -> s.endsWith("module-info.java"))
+                || processors(options, classpath);
+        if (!full) {
+            full = changedClasses(previous.upstream(), upstream, changed);
+            previous.outputs().forEach((source, outputs) -> {
+                if (!Objects.equals(previous.sources().get(source), digests.get(source))
+                        || outputs.stream().anyMatch(out -> !Files.exists(dest.resolve(out.path())))) {
+                    dirty.add(source);
+                } else {
+                    analysis.outputs().put(source, outputs);
+                }
+            });
+            for (String source : sources.keySet()) {
+                if (!previous.outputs().containsKey(source)) dirty.add(source);
+            }
+            dirty.addAll(dependents(analysis, supertypes, changed));
+        }
+        if (full) {
+            dirty.addAll(sources.keySet());
+            if (Objects.nonNull(previous)) dirty.addAll(previous.outputs().keySet());
+            analysis.outputs().clear();
+        }
+
+        try {
+            Files.deleteIfExists(analysisFile);
+            while (!dirty.isEmpty()) {
+                Map<String, List<Output>> old = new HashMap<>();
+                for (String source : dirty) {
+                    List<Output> outputs = Objects.isNull(previous) ? null : previous.outputs().get(source);
+                    if (analysis.outputs().containsKey(source)) outputs = analysis.outputs().remove(source);
+                    if (Objects.nonNull(outputs)) {
+                        old.put(source, outputs);
+                        for (Output out : outputs) {
+                            Files.deleteIfExists(dest.resolve(out.path()));
+                        }
+                    }
+                }
+                List<File> compiled = dirty.stream().map(sources::get).filter(Objects::nonNull).toList();
+                dirty.clear();
+                if (compiled.isEmpty()) break;
+
+                Map<String, List<Output>> generated = new HashMap<>();
+                Compiler.compile(compiled, javacOptions(dest, options, classpath), (source, output) -> {
+                    Path path = Path.of(output);
+                    generated.computeIfAbsent(Objects.isNull(source) ? "" : Path.of(source).toString(),
+                            k -> new ArrayList<>()).add(new Output(dest.relativize(path).toString(), null));
+                });
+                for (Map.Entry<String, List<Output>> entry : generated.entrySet()) {
+                    analysis.outputs().put(entry.getKey(), entry.getValue().stream()
+                            .map(out -> new Output(out.path(), ClassFile.read(dest.resolve(out.path()))))
+                            .toList());
+                }
+
+                // sources which depend on classes whose API changed are compiled in the next round
+                Map<String, String> before = new HashMap<>(), after = new HashMap<>();
+                old.values().forEach(outputs -> outputs.forEach(out -> before.put(out.type().name(), api(out.type()))));
+                generated.keySet().forEach(source -> analysis.outputs().get(source)
+                        .forEach(out -> after.put(out.type().name(), api(out.type()))));
+                Set<String> affected = new HashSet<>();
+                if (!full && changedClasses(before, after, affected)) {
+                    return compile(sourceFiles, destination, options); // without an analysis, compiles everything
+                }
+                dirty.addAll(dependents(analysis, supertypes, affected));
+            }
+            save(analysisFile, analysis);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return analysis.outputs().values().stream()
+                .flatMap(List::stream)
+                .map(out -> dest.resolve(out.path()).toUri())
+                .toList();
+    }
+
+    private static String api(ClassFile type) {
+        return type.api() + ':' + type.constants();
+    }
+
+    /**
+     * Compares the API digests of classes
+     * @param before the digests of the classes before compilation, by class name
+     * @param after the digests of the classes after compilation, by class name
+     * @param changed receives the names of the classes which were added, removed or whose API changed
+     * @return true if the value of a compile-time constant changed
+     */
+    private static boolean changedClasses(Map<String, String> before, Map<String, String> after, Set<String> changed) {
+        boolean constants = false;
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            String now = after.get(entry.getKey());
+            if (Objects.equals(now, entry.getValue())) continue;
+            changed.add(entry.getKey());
+            String was = entry.getValue();
+            constants |= Objects.nonNull(now) && !now.substring(now.indexOf(':')).equals(was.substring(was.indexOf(':')));
+        }
+        for (String name : after.keySet()) {
+            if (!before.containsKey(name)) changed.add(name);
+        }
+        return constants;
+    }
+
+    /**
+     * Finds the source files whose classes refer to classes whose API changed, or to their subtypes
+     * @param analysis the analysis of the compilation
+     * @param upstream the supertypes of the classes in directories on the class path, by class name
+     * @param changed the names of the classes whose API changed
+     * @return the source files which need to be recompiled
+     */
+    private static Set<String> dependents(Analysis analysis, Map<String, Set<String>> upstream, Set<String> changed) {
+        Set<String> dependents = new LinkedHashSet<>();
+        if (changed.isEmpty()) return dependents;
+
+        Map<String, List<String>> subtypes = new HashMap<>();
+        BiConsumer<String, Set<String>> inherits = (type, supers) ->
+                supers.forEach(s -> subtypes.computeIfAbsent(s, k -> new ArrayList<>()).add(type));
+        upstream.forEach(inherits);
+        analysis.outputs().values().forEach(outputs ->
+                outputs.forEach(out -> inherits.accept(out.type().name(), out.type().supertypes())));
+        Set<String> affected = new HashSet<>(changed);
+        for (Deque<String> queue = new ArrayDeque<>(changed); !queue.isEmpty(); ) {
+            for (String type : subtypes.getOrDefault(queue.pop(), List.of())) {
+                if (affected.add(type)) queue.add(type);
+            }
+        }
+
+        analysis.outputs().forEach((source, outputs) -> {
+            for (Output out : outputs) {
+                if (out.type().references().stream().anyMatch(affected::contains)) {
+                    dependents.add(source);
+                    break;
+                }
+            }
+        });
+        return dependents;
+    }
+
+    private static void analyze(Path dir, Map<String, String> classes, Map<String, Set<String>> supertypes) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.filter(p -> p.toString().endsWith(".class")).forEach(p -> {
+                ClassFile type = ClassFile.read(p);
+                if (Objects.isNull(classes.putIfAbsent(type.name(), api(type)))) {
+                    supertypes.put(type.name(), type.supertypes());
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static List<String> classpath(List<String> options) {
+        for (int i = 0; i < options.size() - 1; i++) {
+            if (CLASSPATH_OPTIONS.contains(options.get(i))) {
+                return List.of(options.get(i + 1).split(File.pathSeparator));
+            }
+        }
+        return List.of();
+    }
+
+    /**
+     * Gets the class path that javac uses when the options do not specify one
+     */
+    private static List<String> defaultClasspath() {
+        try (StandardJavaFileManager manager = ToolProvider.getSystemJavaCompiler()
+                .getStandardFileManager(null, null, null)) {
+            Iterable<? extends Path> paths = manager.getLocationAsPaths(StandardLocation.CLASS_PATH);
+            List<String> classpath = new ArrayList<>();
+            if (Objects.nonNull(paths)) paths.forEach(path -> classpath.add(path.toString()));
+            return classpath;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Determines whether annotation processors may run during compilation,
+     * in which case the files they read and generate cannot be tracked
+     */
+    private static boolean processors(List<String> options, List<String> classpath) {
+        if (options.contains("-proc:none")) return false;
+        if (options.stream().anyMatch(PROCESSOR_OPTIONS::contains)) return true;
+        boolean specified = options.stream().anyMatch(CLASSPATH_OPTIONS::contains);
+        for (String entry : specified ? classpath : defaultClasspath()) {
+            Path path = Path.of(entry.isEmpty() ? "." : entry);
+            if (Files.isDirectory(path)) {
+                if (Files.exists(path.resolve(ClassPathIndex.PROCESSOR_SERVICE))) return true;
+            } else if (Files.isRegularFile(path)) {
+                try {
+                    // the jar file stays open in the class path index, so it is only read again if it changes
+                    if (ClassPathIndex.declaresProcessors(path)) return true;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the options for compiling some of the source files, with the output directory on the class path
+     * so that the classes of the other source files can be referred to.
+     * If the options do not specify a class path, the output directory is added to javac's default class path
+     */
+    private static List<String> javacOptions(Path dest, List<String> options, List<String> classpath) {
+        List<String> javac = new ArrayList<>(List.of("-d", dest.toString()));
+        boolean found = false;
+        for (int i = 0; i < options.size(); i++) {
+            javac.add(options.get(i));
+            if (CLASSPATH_OPTIONS.contains(options.get(i)) && i < options.size() - 1) {
+                javac.add(dest + File.pathSeparator + options.get(++i));
+                found = true;
+            }
+        }
+        if (!found) {
+            List<String> entries = new ArrayList<>(List.of(dest.toString()));
+            entries.addAll(defaultClasspath());
+            javac.addAll(List.of("-cp", String.join(File.pathSeparator, entries)));
+        }
+        return javac;
+    }
+
+    /**
+     * Gets the state of a jar file on the class path,
+     * reusing the previous fingerprint of the jar if it has not been modified since
+     */
+    private static String jarState(Path path, Map<String, String> previous) {
+        File file = path.toFile();
+        String stamp = file.length() + ":" + file.lastModified();
+        String state = Objects.isNull(previous) ? null : previous.get(path.toString());
+        if (Objects.nonNull(state) && state.startsWith(stamp + ' ')) return state;
+        return stamp + ' ' + ClassFile.fingerprint(List.of(file));
+    }
+
+    private static Map<String, String> fingerprints(Map<String, String> jars) {
+        Map<String, String> fingerprints = new TreeMap<>();
+        jars.forEach((path, state) -> fingerprints.put(path, state.substring(state.indexOf(' ') + 1)));
+        return fingerprints;
+    }
+
+    private static String digest(Path file) {
+        FileStates states = FileStates.active();
+        String digest = Objects.isNull(states) ? null : states.digest(file);
+        if (Objects.nonNull(digest)) return digest;
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                md.update(buffer, 0, read);
+            }
+            return HEX.formatHex(md.digest());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Analysis load(Path file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FORMAT) return null;
+            List<String> options = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                options.add(in.readUTF());
+            }
+            Map<String, String> jars = readMap(in, new TreeMap<>()), upstream = readMap(in, new HashMap<>()),
+                    sources = readMap(in, new HashMap<>());
+            Map<String, List<Output>> outputs = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                String source = in.readUTF();
+                List<Output> classes = new ArrayList<>();
+                for (int j = in.readInt(); j > 0; j--) {
+                    String path = in.readUTF(), name = in.readUTF(), api = in.readUTF(), constants = in.readUTF();
+                    Set<String> supertypes = readSet(in), references = readSet(in);
+                    classes.add(new Output(path, new ClassFile(name, supertypes, references, api, constants)));
+                }
+                outputs.put(source, classes);
+            }
+            return new Analysis(options, jars, upstream, sources, outputs);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            return null; // an unreadable analysis causes a full compilation
+        }
+    }
+
+    private static Set<String> readSet(DataInputStream in) throws IOException {
+        Set<String> set = new HashSet<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            set.add(in.readUTF());
+        }
+        return set;
+    }
+
+    private static Map<String, String> readMap(DataInputStream in, Map<String, String> map) throws IOException {
+        for (int i = in.readInt(); i > 0; i--) {
+            map.put(in.readUTF(), in.readUTF());
+        }
+        return map;
+    }
+
+    private static void save(Path file, Analysis analysis) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(FORMAT);
+            out.writeInt(analysis.options().size());
+            for (String option : analysis.options()) {
+                out.writeUTF(option);
+            }
+            for (Map<String, String> map : List.of(analysis.jars(), analysis.upstream(), analysis.sources())) {
+                out.writeInt(map.size());
+                for (Map.Entry<String, String> e : map.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeUTF(e.getValue());
+                }
+            }
+            out.writeInt(analysis.outputs().size());
+            for (Map.Entry<String, List<Output>> e : analysis.outputs().entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().size());
+                for (Output output : e.getValue()) {
+                    ClassFile type = output.type();
+                    out.writeUTF(output.path());
+                    out.writeUTF(type.name());
+                    out.writeUTF(type.api());
+                    out.writeUTF(type.constants());
+                    for (Set<String> names : List.of(type.supertypes(), type.references())) {
+                        out.writeInt(names.size());
+                        for (String name : names) {
+                            out.writeUTF(name);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -4,12 +4,24 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
 import java.util.stream.Stream;
 
 /**
  * A wrapper for the Apache Ivy dependency manager
+ * <p>
+ * The artifacts that each set of dependencies resolves to are recorded in a {@link #lockFile() lockfile}
+ * in the cache directory, together with their SHA-256 checksums.
+ * Dependencies are resolved from the lockfile without running Ivy if all of the recorded artifacts
+ * are present and unchanged.
+ * Deleting the lockfile, or calling {@link #refresh(String...)}, makes Ivy resolve the dependencies again.
  *
  * @param url the URL of the Ivy jar file
  * @param cacheDir the path where the Ivy cache directory should be created
@@ -24,6 +36,11 @@ public record IvyResolver(String url, String cacheDir, File settingsFile) implem
      */
     public static final String VER2_5_1_URL = "https://repo1.maven.org/maven2/org/apache/ivy/ivy/2.5.1/ivy-2.5.1.jar";
 
+    /**
+     * The name of the lockfile in the cache directory
+     */
+    public static final String LOCK_FILE = "resolved.lock";
+
     /**
      * Gets a reference to a local copy of the Ivy jar file
      * @return the file path
@@ -37,7 +54,25 @@ public record IvyResolver(String url, String cacheDir, File settingsFile) implem
         return path;
     }
 
+    /**
+     * Gets the location of the lockfile
+     * @return the path of the file which records the artifacts that dependencies were resolved to
+     */
+    public Path lockFile() {
+        return Path.of(cacheDir, LOCK_FILE);
+    }
+
     @Override public Stream<Path> resolve(String... dependencies) {
+        List<Path> locked = locked(lockKey(dependencies));
+        return Objects.nonNull(locked) ? locked.stream() : refresh(dependencies);
+    }
+
+    /**
+     * Resolves dependencies using Ivy, ignoring the lockfile, and records the result in the lockfile
+     * @param dependencies names of dependencies in the format {@code "org:name:revision"}
+     * @return a stream of Path objects referencing the resolved dependencies
+     */
+    public Stream<Path> refresh(String... dependencies) {
         StringBuilder xml = new StringBuilder();
         xml.append("<ivy-module version='2.0' xmlns:m='http://ant.apache.org/ivy/maven'>");
         xml.append("<info organisation='org' module='module'/>");
@@ -56,7 +91,98 @@ public record IvyResolver(String url, String cacheDir, File settingsFile) implem
             }
         }
         xml.append("</dependencies></ivy-module>");
-        return download(tempFile("ivy-", ".xml", xml), settingsFile);
+        List<Path> artifacts = download(tempFile("ivy-", ".xml", xml), settingsFile).toList();
+        lock(lockKey(dependencies), artifacts);
+        return artifacts.stream();
+    }
+
+    private String lockKey(String... dependencies) {
+        String key = String.join(" ", dependencies);
+        return Objects.isNull(settingsFile) ? key : key + " -settings " + settingsFile;
+    }
+
+    /**
+     * Gets the recorded artifacts of a set of dependencies
+     * @param key the dependencies
+     * @return the artifacts, or null if they are not recorded or have been modified or deleted
+     */
+    private List<Path> locked(String key) {
+        List<String> artifacts = readLock(lockFile()).get(key);
+        if (Objects.isNull(artifacts)) return null;
+
+        Path dir = Path.of(cacheDir).toAbsolutePath();
+        List<Path> paths = new ArrayList<>();
+        for (String artifact : artifacts) {
+            int space = artifact.indexOf(' ');
+            Path path = dir.resolve(artifact.substring(space + 1));
+            if (space < 0 || !artifact.substring(0, space).equals(checksum(path))) return null;
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    /**
+     * Records the artifacts of a set of dependencies in the lockfile
+     * @param key the dependencies
+     * @param artifacts the resolved artifacts
+     */
+    private void lock(String key, List<Path> artifacts) {
+        Path dir = Path.of(cacheDir).toAbsolutePath();
+        List<String> entries = new ArrayList<>();
+        for (Path artifact : artifacts) {
+            String checksum = checksum(artifact);
+            if (Objects.isNull(checksum)) return; // the artifact cannot be verified, so it is not recorded
+            Path path = artifact.toAbsolutePath();
+            entries.add(checksum + ' ' + (path.startsWith(dir) ? dir.relativize(path) : path));
+        }
+
+        Path file = lockFile(), temp = file.resolveSibling(file.getFileName() + ".tmp");
+        synchronized (IvyResolver.class) {
+            Map<String, List<String>> lock = readLock(file);
+            lock.put(key, entries);
+            StringBuilder text = new StringBuilder("# Artifacts resolved by Apache Ivy; delete this file to resolve again\n");
+            lock.forEach((dependencies, resolved) -> {
+                text.append(dependencies).append('\n');
+                resolved.forEach(entry -> text.append('\t').append(entry).append('\n'));
+            });
+            try {
+                Files.createDirectories(dir);
+                Files.writeString(temp, text);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Reads a lockfile
+     * @param file the lockfile, which need not exist
+     * @return the recorded entries of checksum and path of each set of dependencies
+     */
+    private static Map<String, List<String>> readLock(Path file) {
+        Map<String, List<String>> lock = new TreeMap<>();
+        try {
+            List<String> entries = null;
+            for (String line : Files.readAllLines(file)) {
+                if (line.isBlank() || line.startsWith("#")) continue;
+                if (!line.startsWith("\t")) {
+                    lock.put(line, entries = new ArrayList<>());
+                } else if (Objects.nonNull(entries)) {
+                    entries.add(line.substring(1));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // nothing has been resolved
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return lock;
+    }
+
+    private static String checksum(Path file) {
+        FileStates states = FileStates.active();
+        return (Objects.isNull(states) ? new FileStates() : states).digest(file);
     }
 
     /**
@@ -81,7 +207,9 @@ public record IvyResolver(String url, String cacheDir, File settingsFile) implem
         }
         cmd.run();
         try {
-            return Stream.of(Files.readString(cacheFile.toPath()).trim().split(":")).map(Path::of);
+            return Stream.of(Files.readString(cacheFile.toPath()).trim().split(":"))
+                    .filter(path -> !path.isEmpty())
+                    .map(Path::of);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,293 @@
+package org.copalis.jam.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a jar file.
+ * Entries are given a fixed modification time so that the same contents always produce the same archive.
+ * <p>
+ * The entries are added to the archive when the writer is closed.
+ * Their contents are compressed in parallel and written in the order they were added.
+ * If the jar file already exists, the compressed data of each entry which has the same name, CRC and size
+ * as an entry in the existing file is copied without being compressed again.
+ * The archive is written to a temporary file which then replaces the jar file.
+ *
+ * @author gilesjb
+ */
+public final class JarWriter implements Closeable {
+    private static final int LOCAL = 0x04034b50, CENTRAL = 0x02014b50, END = 0x06054b50;
+    private static final int STORED = 0, DEFLATED = 8;
+    private static final int UTF8 = 0x800, VERSION = 20;
+    private static final int DOS_EPOCH = 0x00210000; // 1980-01-01 00:00, the earliest DOS time
+    private static final long LIMIT = 0xFFFFFFFFL; // larger archives need zip64 extensions
+
+    private final Path jar;
+    private final Map<String, Object> entries = new LinkedHashMap<>();
+
+    /**
+     * An entry of the archive
+     * @param name the name of the entry
+     * @param method the compression method
+     * @param crc the CRC-32 of the uncompressed data
+     * @param size the size of the uncompressed data
+     * @param data the compressed data
+     */
+    private record Entry(byte[] name, int method, long crc, long size, byte[] data) { }
+
+    /**
+     * The identity of an entry's contents
+     * @param name the name of the entry
+     * @param crc the CRC-32 of the uncompressed data
+     * @param size the size of the uncompressed data
+     */
+    private record Key(String name, long crc, long size) { }
+
+    /**
+     * The compressed data of an entry in an existing archive
+     * @param method the compression method
+     * @param header the offset of the entry's local header
+     * @param compressedSize the size of the compressed data
+     */
+    private record Previous(int method, long header, long compressedSize) { }
+
+    /**
+     * Creates a writer for a jar file, which replaces any existing file when the writer is closed
+     * @param jar the location of the jar file
+     */
+    public JarWriter(Path jar) {
+        this.jar = jar.toAbsolutePath();
+    }
+
+    /**
+     * Adds an entry from memory
+     * @param name the name of the entry
+     * @param contents the contents of the entry
+     * @throws ZipException if there is already an entry with the same name
+     */
+    public void add(String name, byte[] contents) throws ZipException {
+        put(name, contents);
+    }
+
+    /**
+     * Adds an entry from a file, which is read when the writer is closed
+     * @param name the name of the entry
+     * @param file the file to copy into the entry
+     * @throws ZipException if there is already an entry with the same name
+     */
+    public void add(String name, Path file) throws ZipException {
+        put(name, file);
+    }
+
+    private void put(String name, Object contents) throws ZipException {
+        if (Objects.nonNull(entries.putIfAbsent(name, contents))) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+    }
+
+    private static byte[] contents(Object source) {
+        try {
+            return source instanceof byte[] bytes ? bytes : Files.readAllBytes((Path) source);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override public void close() throws IOException {
+        Path temp = jar.resolveSibling(jar.getFileName() + ".tmp");
+        try {
+            if (entries.size() >= 0xFFFF || !write(temp)) {
+                writeSequentially(temp);
+            }
+            Files.move(temp, jar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Writes the archive, reusing compressed data from the existing jar file
+     * @param temp the file to write the archive to
+     * @return false if the archive is too large to be written without zip64 extensions
+     */
+    private boolean write(Path temp) throws IOException {
+        List<Entry> compressed;
+        try (FileChannel existing = Files.isRegularFile(jar) ? FileChannel.open(jar) : null) {
+            Map<Key, Previous> previous = Objects.isNull(existing) ? Map.of() : reusable(existing);
+            compressed = entries.entrySet().parallelStream()
+                    .map(e -> compress(e.getKey(), contents(e.getValue()), previous, existing))
+                    .toList();
+        }
+
+        long total = 22;
+        for (Entry entry : compressed) {
+            total += 30 + 46 + 2L * entry.name().length + entry.data().length;
+        }
+        if (total > LIMIT) return false;
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16)) {
+            ByteBuffer header = ByteBuffer.allocate(46).order(ByteOrder.LITTLE_ENDIAN);
+            long[] offsets = new long[compressed.size()];
+            long offset = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                Entry entry = compressed.get(i);
+                offsets[i] = offset;
+                header.clear();
+                header.putInt(LOCAL).putShort((short) VERSION).putShort((short) UTF8)
+                        .putShort((short) entry.method()).putInt(DOS_EPOCH).putInt((int) entry.crc())
+                        .putInt(entry.data().length).putInt((int) entry.size())
+                        .putShort((short) entry.name().length).putShort((short) 0);
+                out.write(header.array(), 0, header.position());
+                out.write(entry.name());
+                out.write(entry.data());
+                offset += header.position() + entry.name().length + entry.data().length;
+            }
+            long directory = offset;
+            for (int i = 0; i < offsets.length; i++) {
+                Entry entry = compressed.get(i);
+                header.clear();
+                header.putInt(CENTRAL).putShort((short) VERSION).putShort((short) VERSION).putShort((short) UTF8)
+                        .putShort((short) entry.method()).putInt(DOS_EPOCH).putInt((int) entry.crc())
+                        .putInt(entry.data().length).putInt((int) entry.size())
+                        .putShort((short) entry.name().length).putShort((short) 0).putShort((short) 0)
+                        .putShort((short) 0).putShort((short) 0).putInt(0).putInt((int) offsets[i]);
+                out.write(header.array(), 0, header.position());
+                out.write(entry.name());
+                offset += header.position() + entry.name().length;
+            }
+            header.clear();
+            header.putInt(END).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) offsets.length).putShort((short) offsets.length)
+                    .putInt((int) (offset - directory)).putInt((int) directory).putShort((short) 0);
+            out.write(header.array(), 0, header.position());
+        }
+        return true;
+    }
+
+    /**
+     * Gets the compressed data of an entry, copying it from the existing archive if it is unchanged
+     */
+    private static Entry compress(String name, byte[] contents, Map<Key, Previous> previous, FileChannel existing) {
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        Previous old = previous.get(new Key(name, crc.getValue(), contents.length));
+        if (Objects.nonNull(old)) {
+            try {
+                ByteBuffer local = read(existing, old.header(), 30);
+                if (local.getInt(0) == LOCAL) {
+                    long data = old.header() + 30 + Short.toUnsignedInt(local.getShort(26))
+                            + Short.toUnsignedInt(local.getShort(28));
+                    return new Entry(utf8, old.method(), crc.getValue(), contents.length,
+                            read(existing, data, (int) old.compressedSize()).array());
+                }
+            } catch (IOException e) {
+                // the existing archive is unreadable, so the entry is compressed again
+            }
+        }
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(contents);
+            deflater.finish();
+            ByteArrayOutputStream data = new ByteArrayOutputStream(Math.max(64, contents.length / 2));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                data.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return new Entry(utf8, DEFLATED, crc.getValue(), contents.length, data.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new ZipException("Truncated archive");
+        }
+        return buffer;
+    }
+
+    private static Map<Key, Previous> reusable(FileChannel channel) {
+        try {
+            return index(channel);
+        } catch (IOException | IndexOutOfBoundsException e) {
+            return Map.of(); // the existing archive is unreadable, so nothing is reused
+        }
+    }
+
+    /**
+     * Reads the central directory of an existing archive
+     * @param channel the archive
+     * @return the locations of the entries which can be reused, or an empty map if the archive cannot be read
+     */
+    private static Map<Key, Previous> index(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int tail = (int) Math.min(size, 22 + 0xFFFF);
+        if (tail < 22) return Map.of();
+        ByteBuffer end = read(channel, size - tail, tail);
+        int pos = tail - 22;
+        while (pos >= 0 && end.getInt(pos) != END) pos--;
+        if (pos < 0) return Map.of();
+
+        long length = Integer.toUnsignedLong(end.getInt(pos + 12)), start = Integer.toUnsignedLong(end.getInt(pos + 16));
+        if (start == LIMIT || start + length > size) return Map.of(); // zip64 archives are not reused
+        ByteBuffer directory = read(channel, start, (int) length);
+        Map<Key, Previous> previous = new HashMap<>();
+        for (int p = 0; p + 46 <= length && directory.getInt(p) == CENTRAL; ) {
+            int flags = directory.getShort(p + 8), method = directory.getShort(p + 10);
+            int nameLength = Short.toUnsignedInt(directory.getShort(p + 28));
+            byte[] name = new byte[nameLength];
+            directory.get(p + 46, name);
+            if ((flags & 1) == 0 && (method == DEFLATED || method == STORED)) {
+                previous.put(new Key(new String(name, StandardCharsets.UTF_8),
+                        Integer.toUnsignedLong(directory.getInt(p + 16)),
+                        Integer.toUnsignedLong(directory.getInt(p + 24))),
+                        new Previous(method, Integer.toUnsignedLong(directory.getInt(p + 42)),
+                                Integer.toUnsignedLong(directory.getInt(p + 20))));
+            }
+            p += 46 + nameLength + Short.toUnsignedInt(directory.getShort(p + 30))
+                    + Short.toUnsignedInt(directory.getShort(p + 32));
+        }
+        return previous;
+    }
+
+    /**
+     * Writes an archive which is too large for {@link #write(Path)} using zip64 extensions where necessary
+     */
+    private void writeSequentially(Path temp) throws IOException {
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(temp))) {
+            for (Map.Entry<String, Object> entry : entries.entrySet()) {
+                JarEntry jarEntry = new JarEntry(entry.getKey());
+                jarEntry.setTime(0);
+                out.putNextEntry(jarEntry);
+                out.write(contents(entry.getValue()));
+                out.closeEntry();
+            }
+        }
+    }
+}
@@ -55,6 +55,27 @@ public interface JamProject extends JavaProject {
         return new File(report + "/index.html");
     }
 
+    default Fileset benchmarkSources() {
+        return sourceFiles("benchmarks/**.java");
+    }
+
+    default Fileset jmhLib() {
+        return resolve("org.openjdk.jmh:jmh-core:1.37", "org.openjdk.jmh:jmh-generator-annprocess:1.37");
+    }
+
+    default Fileset benchmarkClasses() {
+        return javac("classes/benchmarks", benchmarkSources(),
+                "-cp", classpath(mainClasses(), jmhLib()),
+                "-processorpath", classpath(jmhLib()));
+    }
+
+    default File benchmarks() {
+        String results = buildPath("benchmarks") + "/results-" + version() + ".json";
+        java("-cp", classpath(benchmarkClasses(), mainClasses(), jmhLib()),
+                "org.openjdk.jmh.Main", "-rf", "json", "-rff", results);
+        return new File(results);
+    }
+
     default Fileset docs() {
         return javadoc("docs",
                 "-sourcepath", classpath(mainSources()),
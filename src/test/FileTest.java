@@ -1,10 +1,16 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.copalis.jam.util.FileStates;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -25,6 +31,39 @@ class FileTest {
         assertFalse(file.modifiedSince(fileState));
     }
 
+    @Test
+    public void testContentHash() throws IOException {
+        Path dir = Files.createTempDirectory("jam-states");
+        File temp = new File(Files.writeString(dir.resolve("temp.txt"), "content"));
+        temp.setLastModified(1_000_000_000_000L);
+        try {
+            FileStates.activate(new FileStates());
+            Serializable state = temp.currentState();
+
+            // touching a file does not modify it
+            temp.setLastModified(1_000_000_010_000L);
+            assertFalse(temp.modifiedSince(state));
+
+            FileStates.active().save(dir.resolve("states"));
+            FileStates.activate(FileStates.load(dir.resolve("states")));
+            assertEquals(1, FileStates.active().size());
+            assertFalse(temp.modifiedSince(state));
+
+            // an edit in the same second as the file was hashed is detected
+            Files.writeString(temp.toPath(), "content");
+            long modified = temp.lastModified();
+            state = temp.currentState();
+            Files.writeString(temp.toPath(), "CONTENT");
+            temp.setLastModified(modified);
+            assertTrue(temp.modifiedSince(state));
+        } finally {
+            FileStates.activate(null);
+            temp.delete();
+            dir.resolve("states").toFile().delete();
+            dir.toFile().delete();
+        }
+    }
+
     @Test
     public void testSerializable() throws IOException {
         try (ByteArrayOutputStream tmp = new ByteArrayOutputStream()) {
@@ -0,0 +1,128 @@
+package org.copalis.jam.memo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+class CacheFormatTest {
+
+    record Resource(String name) implements Mutable {
+        public Serializable currentState() {
+            return name.length();
+        }
+    }
+
+    CacheFormat.Contents roundTrip(Map<Mutable, Serializable> states, List<Result> results) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CacheFormat.write(bytes, states, results, List.of(results.stream().map(Result::signature).toList()));
+        return CacheFormat.read(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    @Test void testIdentity() throws IOException {
+        Resource resource = new Resource("foo");
+        Map<Mutable, Serializable> states = new IdentityHashMap<>();
+        states.put(resource, 3);
+        Result result = new Result(new Invocation("read", List.of(resource)), resource, Set.of(resource, Mutable.CHANGED),
+                List.of(new Invocation("name", List.of())));
+
+        CacheFormat.Contents contents = roundTrip(states, List.of(result));
+        Mutable key = contents.states.keySet().iterator().next();
+        Result loaded = contents.result(0);
+
+        assertEquals(result, loaded);
+        assertSame(key, loaded.value());
+        assertSame(key, loaded.signature().params().get(0));
+        assertEquals(3, contents.states.get(loaded.value()));
+        assertEquals(Set.of(key, Mutable.CHANGED), loaded.dependencies());
+    }
+
+    @Test void testValues() throws IOException {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("z", new LinkedList<>(List.of(1, 2L, true, 1.5)));
+        map.put("a", new TreeSet<>(Set.of("x", "y")));
+        map.put("n", null);
+        Result result = new Result(new Invocation("values", new ArrayList<>(List.of("z"))), map, Set.of());
+
+        Object loaded = roundTrip(Map.of(), List.of(result)).result(0).value();
+        assertEquals(map, loaded);
+        assertEquals(LinkedHashMap.class, loaded.getClass());
+        assertEquals(List.copyOf(map.keySet()), List.copyOf(((Map<?, ?>) loaded).keySet()));
+    }
+
+    static final class Counted implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        static int decoded;
+
+        private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            decoded++;
+        }
+    }
+
+    @Test void testLazy() throws IOException {
+        Resource resource = new Resource("bar");
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(new Result(new Invocation("count", List.of(i)), new Counted(), Set.of(resource)));
+        }
+        Counted.decoded = 0;
+        CacheFormat.Contents contents = roundTrip(Map.of(resource, 3), results);
+        assertEquals(3, contents.signatures.size());
+        assertEquals(List.of(contents.signatures), contents.builds);
+        assertEquals(0, Counted.decoded);
+
+        Result last = contents.result(2);
+        assertEquals(1, Counted.decoded);
+        assertEquals(results.get(2).signature(), last.signature());
+        assertSame(contents.states.keySet().iterator().next(), last.dependencies().iterator().next());
+    }
+
+    @Test void testJournal() throws IOException {
+        Resource resource = new Resource("baz");
+        Result result = new Result(new Invocation("read", List.of(resource)), resource, Set.of(resource));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CacheFormat.writeJournalHeader(bytes);
+        bytes.write(CacheFormat.journalRecord(CacheFormat.Change.put(result, Map.of(resource, 3))));
+        bytes.write(CacheFormat.journalRecord(CacheFormat.Change.clear()));
+        bytes.write(CacheFormat.journalRecord(CacheFormat.Change.build()));
+        bytes.write(CacheFormat.journalRecord(CacheFormat.Change.root(result.signature())));
+        byte[] removal = CacheFormat.journalRecord(CacheFormat.Change.remove(result.signature()));
+        bytes.write(removal, 0, removal.length - 1);
+
+        CacheFormat.Journal journal = CacheFormat.readJournal(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(4, journal.changes().size());
+        assertFalse(journal.complete());
+
+        CacheFormat.Change put = journal.changes().get(0);
+        assertEquals(result, put.result());
+        assertSame(put.states().keySet().iterator().next(), put.result().value());
+        assertNull(journal.changes().get(1).signature());
+        assertEquals(CacheFormat.Change.Type.BUILD, journal.changes().get(2).type());
+        assertEquals(result.signature(), journal.changes().get(3).signature());
+    }
+
+    @Test void testUnsupported() {
+        byte[] bytes = { (byte) 0xac, (byte) 0xed, 0, 5, 0, 0, 0, 0 };
+        assertThrows(StreamCorruptedException.class, () -> CacheFormat.read(new ByteArrayInputStream(bytes)));
+    }
+}
@@ -1,16 +1,38 @@
 package org.copalis.jam.memo;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrowsExactly;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.Serializable;
 import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.junit.jupiter.api.Test;
 
@@ -42,6 +64,39 @@ public class MemorizerTest {
         assertEquals(1, calls.size());
     }
 
+    @Test public void testCapacity() throws IOException {
+        AtomicInteger computed = new AtomicInteger();
+        List<Invocation> evicted = new LinkedList<>();
+
+        Memorizer memo = new Memorizer(new Observer() {
+            public void startMethod(Observer.Status status, Method method, List<Object> params) {
+                if (status != Observer.Status.CURRENT) computed.incrementAndGet();
+            }
+            public void evicted(Invocation signature, long evictions) {
+                evicted.add(signature);
+                assertEquals(evicted.size(), evictions);
+            }
+        }, null, Memorizer.Capacity.entries(10));
+        ByteArrayOutputStream journal = new ByteArrayOutputStream();
+        memo.journal(journal, false);
+
+        Fibonacci fib = memo.instantiate(Fibonacci.class);
+
+        assertEquals(3736710778780434371L, fib.fib(100));
+        assertTrue(memo.size() <= 10);
+        assertTrue(evicted.size() >= 101 - memo.size());
+
+        // the journal only replays the results which were kept
+        Memorizer replayed = new Memorizer();
+        replayed.replay(new ByteArrayInputStream(journal.toByteArray()));
+        assertEquals(memo.size(), replayed.size());
+
+        computed.set(0);
+        assertEquals(3736710778780434371L, fib.fib(100));
+        assertTrue(memo.size() <= 10);
+        assertTrue(computed.get() > 0);
+    }
+
     interface Foo {
         void foo();
     }
@@ -128,6 +183,7 @@ public class MemorizerTest {
         called.clear();
         assertEquals("jam-1.0", memo.instantiate(Project.class).build().currentState());
         assertEquals(List.of(), called);
+        assertFalse(memo.modified());
 
         // modify state and load a new memorizer
         states.put("project-version", "2.0");
@@ -137,5 +193,554 @@ public class MemorizerTest {
         called.clear();
         assertEquals("jam-2.0", memo.instantiate(Project.class).build().currentState());
         assertEquals(List.of("build", "version", "get", "projectName", "put", "get"), called);
+        assertTrue(memo.modified());
+    }
+
+    @Test synchronized public void testFlightRecorderEvents() throws IOException {
+        states.put("project-version", "1.0");
+        Path file = Files.createTempFile("memorizer", ".jfr");
+        try (Recording recording = new Recording()) {
+            Stream.of("Call", "StalenessCheck", "Probe", "Cache")
+                    .forEach(name -> recording.enable("org.copalis.jam." + name));
+            recording.start();
+
+            Memorizer memo = new Memorizer();
+            memo.instantiate(Project.class).build();
+            ByteArrayOutputStream saved = new ByteArrayOutputStream();
+            memo.save(saved);
+            memo = new Memorizer();
+            memo.load(new ByteArrayInputStream(saved.toByteArray()));
+            memo.instantiate(Project.class).build();
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        Map<String, List<String>> events = new HashMap<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            String type = event.getEventType().getName().substring("org.copalis.jam.".length());
+            String detail = switch (type) {
+                case "Call" -> event.getString("method") + ":" + event.getString("status");
+                case "Cache" -> event.getString("operation");
+                default -> "";
+            };
+            events.computeIfAbsent(type, k -> new LinkedList<>()).add(detail);
+        }
+        Files.delete(file);
+
+        assertTrue(events.get("Call").containsAll(List.of("build:COMPUTE", "version:COMPUTE", "build:CURRENT")));
+        assertTrue(events.get("Cache").containsAll(List.of("save", "load", "decode")));
+        assertFalse(events.get("StalenessCheck").isEmpty());
+        assertFalse(events.get("Probe").isEmpty());
+    }
+
+    @Test synchronized public void testJournal() throws IOException {
+        states.put("project-version", "1.0");
+        List<String> called = new LinkedList<>();
+
+        ByteArrayOutputStream journal = new ByteArrayOutputStream();
+        Memorizer memo = new Memorizer(methodObserver(called));
+        memo.journal(journal, false);
+        assertEquals("jam-1.0", memo.instantiate(Project.class).build().currentState());
+
+        // replay the journal into a new memorizer without saving the cache
+        memo = new Memorizer(methodObserver(called));
+        assertTrue(memo.replay(new ByteArrayInputStream(journal.toByteArray())));
+
+        called.clear();
+        assertEquals("jam-1.0", memo.instantiate(Project.class).build().currentState());
+        assertEquals(List.of(), called);
+    }
+
+    interface Targets {
+        default String item(String name) {
+            return name + "-item";
+        }
+
+        default String a() {
+            return item("a");
+        }
+
+        default String b() {
+            return item("b");
+        }
+
+        default void both() {
+            a();
+            b();
+        }
+    }
+
+    @Test public void testGarbageCollection() throws IOException {
+        Memorizer memo = new Memorizer();
+        memo.instantiate(Targets.class).both();
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        memo.save(saved);
+
+        // the second build only uses target a, and is recorded in a journal
+        memo = new Memorizer();
+        memo.load(new ByteArrayInputStream(saved.toByteArray()));
+        ByteArrayOutputStream journal = new ByteArrayOutputStream();
+        memo.journal(journal, false);
+        memo.instantiate(Targets.class).a();
+        assertEquals(0, memo.gc(2));
+
+        memo = new Memorizer();
+        memo.load(new ByteArrayInputStream(saved.toByteArray()));
+        memo.replay(new ByteArrayInputStream(journal.toByteArray()));
+        assertEquals(0, memo.gc(2));
+        assertEquals(4, memo.size());
+        assertEquals(2, memo.gc(1));
+        assertEquals(2, memo.size());
+        assertTrue(memo.modified());
+
+        saved.reset();
+        memo.save(saved);
+        List<String> called = new LinkedList<>();
+        memo = new Memorizer(methodObserver(called));
+        memo.load(new ByteArrayInputStream(saved.toByteArray()));
+        memo.instantiate(Targets.class).both();
+        assertEquals(List.of("both", "b", "item"), called);
+
+        // each journal started by a long-running memoizer starts a new build
+        memo = new Memorizer();
+        Targets targets = memo.instantiate(Targets.class);
+        memo.journal(new ByteArrayOutputStream(), false);
+        targets.both();
+        memo.journal(new ByteArrayOutputStream(), false);
+        targets.a();
+        assertEquals(2, memo.gc(1));
+    }
+
+    @Test public void testSharedCache() {
+        Map<Invocation, Result> shared = new HashMap<>();
+        SharedCache cache = new SharedCache() {
+            public Result fetch(Invocation signature, Set<Mutable> inputs) {
+                return shared.get(signature);
+            }
+
+            public void store(Result result, Set<Mutable> inputs) {
+                shared.put(result.signature(), result);
+            }
+        };
+        Memorizer memo = new Memorizer();
+        memo.share(cache);
+        memo.instantiate(Targets.class).both();
+        assertEquals(4, shared.size());
+
+        // a build in another workspace reuses the shared result without executing nested calls
+        List<String> called = new LinkedList<>();
+        memo = new Memorizer(methodObserver(called));
+        memo.share(cache);
+        assertEquals("a-item", memo.instantiate(Targets.class).a());
+        assertEquals(List.of("a"), called);
+        assertEquals(1, memo.size());
+    }
+
+    @Test public void testUnsharedReturnType() {
+        List<Invocation> fetched = new LinkedList<>();
+        SharedCache cache = new SharedCache() {
+            public boolean shares(Class<?> type) {
+                return type != String.class;
+            }
+
+            public Result fetch(Invocation signature, Set<Mutable> inputs) {
+                fetched.add(signature);
+                return null;
+            }
+
+            public void store(Result result, Set<Mutable> inputs) {
+                fetched.add(result.signature());
+            }
+        };
+        Memorizer memo = new Memorizer();
+        memo.share(cache);
+        memo.instantiate(Targets.class).both();
+        assertEquals(List.of(), fetched);
+    }
+
+    @Test synchronized public void testStaleEntries() {
+        states.put("project-version", "1.0");
+        Memorizer memo = new Memorizer();
+        memo.instantiate(Project.class).build();
+
+        states.put("project-version", "2.0");
+        Map<String, Boolean> status = new HashMap<>();
+        assertEquals(7, memo.entries((res, current) -> {
+            assertEquals(memo.resultStatus(res.signature()), current);
+            status.put(res.signature().name() + res.signature().params(), current);
+        }));
+        assertEquals(false, status.get("build[]"));
+        assertEquals(false, status.get("version[]"));
+        assertEquals(true, status.get("name[]"));
+    }
+
+    static final AtomicInteger probes = new AtomicInteger();
+
+    record Probed(String key) implements Mutable {
+        public String currentState() {
+            probes.incrementAndGet();
+            return states.get(key);
+        }
+    }
+
+    interface Sources {
+        default Probed sources() {
+            return new Probed("sources");
+        }
+
+        default String compile(String target) {
+            return target + sources().key();
+        }
+
+        default List<String> build() {
+            return List.of(compile("a"), compile("b"), compile("c"));
+        }
+    }
+
+    @Test synchronized public void testProbedOnce() {
+        List<String> called = new LinkedList<>();
+        Memorizer memo = new Memorizer(methodObserver(called));
+        Sources sources = memo.instantiate(Sources.class);
+
+        states.put("sources", "1");
+        sources.build();
+
+        probes.set(0);
+        called.clear();
+        sources.build();
+        assertEquals(List.of(), called);
+        assertEquals(1, probes.get());
+
+        // the next build probes the sources again
+        states.put("sources", "2");
+        sources.build();
+        assertEquals(List.of("build", "compile", "sources", "compile", "compile"), called);
+    }
+
+    record Tolerant(String key) implements Mutable {
+        public String currentState() {
+            return states.get(key);
+        }
+
+        @Override public boolean modifiedSince(Serializable oldState) {
+            return !currentState().startsWith(oldState + ".");
+        }
+    }
+
+    interface Loaded {
+        default Probed left() {
+            return new Probed("left");
+        }
+
+        default Probed right() {
+            return new Probed("right");
+        }
+
+        default Tolerant tolerant() {
+            return new Tolerant("tolerant");
+        }
+    }
+
+    @Test synchronized public void testLazyVerification() throws IOException {
+        states.put("left", "1");
+        states.put("right", "1");
+        states.put("tolerant", "1");
+        Memorizer memo = new Memorizer();
+        Loaded loaded = memo.instantiate(Loaded.class);
+        loaded.left();
+        loaded.right();
+        loaded.tolerant();
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        memo.save(saved);
+
+        // loading does not probe mutable objects, and using a result only probes the objects it refers to
+        List<String> called = new LinkedList<>();
+        memo = new Memorizer(methodObserver(called));
+        probes.set(0);
+        memo.load(new ByteArrayInputStream(saved.toByteArray()));
+        assertEquals(0, probes.get());
+        loaded = memo.instantiate(Loaded.class);
+        loaded.left();
+        assertEquals(1, probes.get());
+
+        // an object is compared with its loaded state using its own modifiedSince method
+        states.put("tolerant", "1.1");
+        loaded.tolerant();
+        assertEquals(List.of(), called);
+
+        // states which were not checked are saved again
+        saved.reset();
+        memo.save(saved);
+        memo = new Memorizer(methodObserver(called));
+        memo.load(new ByteArrayInputStream(saved.toByteArray()));
+        memo.instantiate(Loaded.class).right();
+        assertEquals(List.of(), called);
+    }
+
+    interface Primitives {
+        default long binomial(int n, int k) {
+            return k == 0 || k == n ? 1 : binomial(n - 1, k - 1) + binomial(n - 1, k);
+        }
+
+        default State version() {
+            return new State("project-version");
+        }
+
+        default int major(int offset) {
+            return Integer.parseInt(version().currentState().split("\\.")[0]) + offset;
+        }
+    }
+
+    @Test synchronized public void testPrimitiveTables() throws IOException {
+        states.put("project-version", "1.0");
+        List<String> called = new LinkedList<>();
+        Memorizer memo = new Memorizer(methodObserver(called));
+        Primitives primitives = memo.instantiate(Primitives.class);
+
+        assertEquals(155117520L, primitives.binomial(30, 15));
+        assertEquals(255, memo.size());
+        assertEquals(2, primitives.major(1));
+        assertEquals(257, memo.size());
+
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        memo.save(saved);
+        memo = new Memorizer(methodObserver(called));
+        memo.load(new ByteArrayInputStream(saved.toByteArray()));
+        primitives = memo.instantiate(Primitives.class);
+
+        called.clear();
+        assertEquals(155117520L, primitives.binomial(30, 15));
+        assertEquals(155117520L, primitives.binomial(30, 15));
+        assertEquals(2, primitives.major(1));
+        assertEquals(List.of(), called);
+        assertEquals(257, memo.size());
+        assertTrue(memo.resultStatus(new Invocation("binomial", List.of(30, 15))));
+
+        // a result that depends on a mutable object is still refreshed
+        states.put("project-version", "2.0");
+        assertEquals(3, primitives.major(1));
+        assertEquals(List.of("major", "version"), called);
+    }
+
+    interface Lengths {
+        default State version() {
+            return new State("project-version");
+        }
+
+        default int length(int extra) {
+            return version().currentState().length() + extra;
+        }
+
+        default int total() {
+            return length(3);
+        }
+    }
+
+    @Test synchronized public void testPrimitiveTableGarbageCollection() {
+        states.put("project-version", "1.0");
+        List<String> called = new LinkedList<>();
+        Memorizer memo = new Memorizer(methodObserver(called));
+        Lengths lengths = memo.instantiate(Lengths.class);
+        assertEquals(6, lengths.total());
+
+        // a result of a primitive method that depends on a mutable object is reachable from its caller
+        assertEquals(0, memo.gc(1));
+        assertEquals(3, memo.size());
+
+        states.put("project-version", "1.10");
+        called.clear();
+        assertEquals(7, lengths.total());
+        assertEquals(List.of("total", "length", "version"), called);
+    }
+
+    @Test synchronized public void testCancelledBuild() {
+        states.put("project-version", "1.0");
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Memorizer memo = new Memorizer(new Observer() {
+            public void startMethod(Observer.Status status, Method method, List<Object> params) {
+                if (cancelled.get() && status != Observer.Status.CURRENT) throw new CancellationException();
+            }
+        });
+        Primitives primitives = memo.instantiate(Primitives.class);
+        assertEquals(1, primitives.major(0));
+        cancelled.set(true);
+        assertThrowsExactly(CancellationException.class, () -> primitives.major(1));
+
+        // a cancelled build does not prevent later builds from seeing changes
+        cancelled.set(false);
+        assertEquals(1, primitives.major(0));
+        states.put("project-version", "2.0");
+        assertEquals(2, primitives.major(0));
+    }
+
+    static CountDownLatch arrivals;
+
+    interface Siblings {
+        default State left() {
+            return arrive("left");
+        }
+
+        default State right() {
+            return arrive("right");
+        }
+
+        default String both() {
+            return left().currentState() + right().currentState();
+        }
+
+        private static State arrive(String key) {
+            arrivals.countDown();
+            try {
+                assertTrue(arrivals.await(5, TimeUnit.SECONDS), "siblings were not executed in parallel");
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return new State(key);
+        }
+    }
+
+    @Test synchronized public void testParallelSiblings() {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        List<String> called = Collections.synchronizedList(new LinkedList<>());
+        Memorizer memo = new Memorizer(methodObserver(called), executor);
+        Siblings siblings = memo.instantiate(Siblings.class);
+
+        states.put("left", "1");
+        states.put("right", "2");
+        arrivals = new CountDownLatch(1);
+        assertEquals("12", siblings.both());
+        assertEquals(List.of("both", "left", "right"), called);
+
+        states.put("left", "3");
+        states.put("right", "4");
+        arrivals = new CountDownLatch(2);
+        called.clear();
+        assertEquals("34", siblings.both());
+        assertEquals(3, called.size());
+        executor.shutdown();
+    }
+
+    interface Converter {
+        default State input(String key) {
+            return new State(key);
+        }
+
+        default String convert(State input) {
+            return input.currentState().toUpperCase();
+        }
+
+        default List<String> convertAll() {
+            return Stream.of("a", "b", "c", "d", "e", "f", "g", "h")
+                    .map(key -> CompletableFuture.supplyAsync(() -> convert(input(key))))
+                    .toList().stream()
+                    .map(CompletableFuture::join)
+                    .toList();
+        }
+    }
+
+    @Test synchronized public void testOtherThreads() {
+        List<String> called = Collections.synchronizedList(new LinkedList<>());
+        Memorizer memo = new Memorizer(methodObserver(called));
+        Converter converter = memo.instantiate(Converter.class);
+
+        "abcdefgh".chars().forEach(c -> states.put(Character.toString(c), "x" + (char) c));
+        assertEquals(List.of("XA", "XB", "XC", "XD", "XE", "XF", "XG", "XH"), converter.convertAll());
+        assertEquals(17, called.size());
+
+        called.clear();
+        states.put("e", "ye");
+        assertEquals(List.of("XA", "XB", "XC", "XD", "YE", "XF", "XG", "XH"), converter.convertAll());
+        assertEquals("convertAll", called.get(0));
+        assertEquals(1, Collections.frequency(called, "convert"));
+    }
+
+    static Executor bound;
+    static CountDownLatch entered, submitted;
+
+    interface Submitter {
+        default State input(String key) {
+            return new State(key);
+        }
+
+        default String submit() {
+            try {
+                return CompletableFuture.supplyAsync(() -> input("s").currentState(), bound).join();
+            } finally {
+                submitted.countDown();
+            }
+        }
+
+        default String other() {
+            entered.countDown();
+            try {
+                assertTrue(submitted.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return "other";
+        }
+    }
+
+    @Test synchronized public void testExecutor() throws InterruptedException {
+        List<String> called = Collections.synchronizedList(new LinkedList<>());
+        Memorizer memo = new Memorizer(methodObserver(called));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        bound = memo.executor(executor);
+        entered = new CountDownLatch(1);
+        submitted = new CountDownLatch(1);
+        Submitter submitter = memo.instantiate(Submitter.class);
+        states.put("s", "1");
+
+        // a call made by a submitted task is only attributed to the method that submitted it
+        Thread thread = new Thread(() -> memo.instantiate(Submitter.class).other());
+        thread.start();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        assertEquals("1", submitter.submit());
+        thread.join();
+        memo.entries((result, current) -> {
+            if (result.signature().name().equals("submit")) {
+                assertEquals(List.of(new Invocation("input", List.of("s"))), result.calls());
+            } else if (result.signature().name().equals("other")) {
+                assertEquals(List.of(), result.calls());
+                assertEquals(Set.of(), result.dependencies());
+            }
+        });
+
+        states.put("s", "2");
+        called.clear();
+        assertEquals("2", submitter.submit());
+        assertEquals(List.of("submit", "input"), called);
+        executor.shutdown();
+    }
+
+    static final AtomicInteger computations = new AtomicInteger();
+
+    interface Slow {
+        default String slow() {
+            computations.incrementAndGet();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return "done";
+        }
+    }
+
+    @Test public void testSingleFlight() throws Exception {
+        Slow slow = new Memorizer().instantiate(Slow.class);
+        computations.set(0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<String>> calls = new LinkedList<>();
+        for (int i = 0; i < 4; i++) {
+            calls.add(executor.submit(slow::slow));
+        }
+        for (Future<String> call : calls) {
+            assertEquals("done", call.get());
+        }
+        assertEquals(1, computations.get());
+        executor.shutdown();
     }
 }
@@ -0,0 +1,113 @@
+package org.copalis.jam.memo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrowsExactly;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ProxyGeneratorTest {
+
+    public interface Types {
+        default long fib(long x) {
+            return x <= 1 ? x : fib(x - 1) + fib(x - 2);
+        }
+
+        default double scale(int i, double d, float f, byte b, short s, char c, boolean z) {
+            return z ? (i + b + s + c) * d * f : 0;
+        }
+
+        default String join(String sep, String... parts) {
+            return String.join(sep, parts);
+        }
+
+        default int[] range(int n) {
+            int[] range = new int[n];
+            for (int i = 0; i < n; i++) range[i] = i;
+            return range;
+        }
+
+        default String fail(String message) throws IOException {
+            throw new IOException(message);
+        }
+
+        default String sneaky() {
+            throw new RuntimeException(new Exception());
+        }
+
+        default void run(List<String> log) {
+            log.add("run");
+        }
+
+        String unimplemented();
+    }
+
+    @Test public void testTypes() throws IOException {
+        List<String> called = new LinkedList<>();
+        Memorizer memo = new Memorizer(new Observer() {
+            public void startMethod(Observer.Status status, Method method, List<Object> params) {
+                called.add(status.name().charAt(0) + method.getName() + params);
+            }
+        });
+        Types types = memo.instantiateGenerated(Types.class);
+        assertFalse(types instanceof Proxy);
+
+        assertEquals(3736710778780434371L, types.fib(100));
+        assertEquals(6.0 * 1.5 * 2, types.scale(1, 1.5, 2f, (byte) 2, (short) 3, (char) 0, true));
+        assertEquals("a-b-c", types.join("-", "a", "b", "c"));
+        assertArrayEquals(new int[] {0, 1, 2}, types.range(3));
+        assertEquals("boom", assertThrowsExactly(IOException.class, () -> types.fail("boom")).getMessage());
+        assertThrowsExactly(RuntimeException.class, types::sneaky);
+        assertThrowsExactly(IllegalArgumentException.class, types::unimplemented);
+
+        List<String> log = new LinkedList<>();
+        types.run(log);
+        types.run(log);
+        assertEquals(List.of("run", "run"), log);
+
+        called.clear();
+        assertEquals("a-b-c", types.join("-", "a", "b", "c"));
+        assertEquals(List.of("Cjoin[-, a, b, c]"), called);
+    }
+
+    @Test public void testSameObserverCalls() {
+        List<String> proxied = new LinkedList<>(), generated = new LinkedList<>();
+        new Memorizer(recorder(proxied)).instantiate(Types.class).fib(20);
+        new Memorizer(recorder(generated)).instantiateGenerated(Types.class).fib(20);
+        assertEquals(proxied, generated);
+    }
+
+    @Test public void testUndeclaredThrowable() {
+        Observer failing = new Observer() {
+            public Object endMethod(Observer.Status status, Method method, List<Object> params, Object result) {
+                throw sneak(new Exception("observer"));
+            }
+        };
+        for (Types types : List.of(new Memorizer(failing).instantiate(Types.class),
+                new Memorizer(failing).instantiateGenerated(Types.class))) {
+            UndeclaredThrowableException e = assertThrowsExactly(UndeclaredThrowableException.class, () -> types.fib(1));
+            assertEquals("observer", e.getCause().getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <E extends Throwable> RuntimeException sneak(Throwable t) throws E {
+        throw (E) t;
+    }
+
+    static Observer recorder(List<String> called) {
+        return new Observer() {
+            public void startMethod(Observer.Status status, Method method, List<Object> params) {
+                called.add(status + " " + method.getDeclaringClass().getSimpleName() + "." + method.getName() + params);
+            }
+        };
+    }
+}
@@ -0,0 +1,118 @@
+package org.copalis.jam.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.IntStream;
+
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+
+import org.junit.jupiter.api.Test;
+
+public class CompilerTest {
+
+    static Path library(Path dir, String source) throws IOException {
+        Path src = Files.writeString(Files.createDirectories(dir.resolve("lib/p")).resolve("A.java"), source);
+        Path classes = dir.resolve("lib-classes");
+        Compiler.compile(List.of(src.toFile()), List.of("-d", classes.toString()));
+        Path jar = dir.resolve("lib.jar");
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            out.putNextEntry(new JarEntry("p/A.class"));
+            out.write(Files.readAllBytes(classes.resolve("p/A.class")));
+            out.closeEntry();
+        }
+        return jar;
+    }
+
+    static void compile(Path dir, String name, String source, Path classpath) throws IOException {
+        Path src = Files.writeString(Files.createDirectories(dir.resolve("src")).resolve(name + ".java"), source);
+        Compiler.compile(List.of(src.toFile()),
+                List.of("-d", dir.resolve("classes").toString(), "-cp", classpath + File.pathSeparator + "missing"));
+    }
+
+    @Test public void testClassPathIndex() throws IOException {
+        Path dir = Files.createTempDirectory("jam-cp");
+        try {
+            Path jar = library(dir, "package p; public class A { }");
+            compile(dir, "B", "public class B { public p.A a; }", jar);
+            assertThrows(RuntimeException.class, () -> compile(dir, "C", "class C { int c = new p.A().c(); }", jar));
+
+            // a modified jar file is re-read
+            Files.setLastModifiedTime(library(dir, "package p; public class A { public int c() { return 1; } }"),
+                    FileTime.fromMillis(1_000_000_000_000L));
+            compile(dir, "C", "class C { int c = new p.A().c(); }", jar);
+
+            // the index can be used by concurrent compilations
+            IntStream.range(0, 4).parallel().forEach(i -> {
+                try {
+                    compile(dir.resolve("d" + i), "D", "class D { p.A a; }", jar);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            for (int i = 0; i < 4; i++) {
+                assertTrue(Files.exists(dir.resolve("d" + i + "/classes/D.class")));
+            }
+
+            // javadoc resolves types on the indexed class path
+            Compiler.javadoc("-d", dir.resolve("docs").toString(), "-quiet", "-cp", jar.toString(),
+                    dir.resolve("src/B.java").toString());
+            assertTrue(Files.exists(dir.resolve("docs/B.html")));
+        } finally {
+            Paths.rmDir(dir);
+        }
+    }
+
+    @Test public void testSupersededArchive() throws IOException {
+        Path dir = Files.createTempDirectory("jam-cp");
+        try {
+            Path jar = library(dir, "package p; public class A { }");
+            ClassPathIndex index = new ClassPathIndex(List.of(jar));
+            JavaFileObject entry = index.list("p", Set.of(Kind.CLASS), false).get(0);
+
+            // a replaced jar file stays open while an index uses it
+            Files.setLastModifiedTime(library(dir, "package p; public class A { public int a; }"),
+                    FileTime.fromMillis(1_000_000_000_000L));
+            new ClassPathIndex(List.of(jar)).close();
+            entry.openInputStream().close();
+
+            index.close();
+            assertThrows(IllegalStateException.class, entry::openInputStream);
+        } finally {
+            Paths.rmDir(dir);
+        }
+    }
+
+    @Test public void testCompileInMemory() throws IOException {
+        Path dir = Files.createTempDirectory("jam-mem");
+        try {
+            Path src = Files.writeString(dir.resolve("A.java"), "package p; class A { Runnable r = () -> { }; class B { } }");
+            Path classes = dir.resolve("classes");
+            Map<String, byte[]> compiled = Compiler.compileInMemory(List.of(src.toFile()),
+                    List.of("-d", classes.toString()), false);
+            assertEquals(List.of("p/A$B.class", "p/A.class"), List.copyOf(compiled.keySet()));
+            assertFalse(Files.exists(classes));
+
+            compiled = Compiler.compileInMemory(List.of(src.toFile()), List.of("-d", classes.toString()), true);
+            for (Map.Entry<String, byte[]> entry : compiled.entrySet()) {
+                assertArrayEquals(entry.getValue(), Files.readAllBytes(classes.resolve(entry.getKey())));
+            }
+        } finally {
+            Paths.rmDir(dir);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.copalis.jam.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+public class FileWatcherTest {
+
+    static Set<Path> files(FileWatcher watcher, Path dir) {
+        return watcher.files(dir).collect(Collectors.toSet());
+    }
+
+    @Test public void testIndex() throws IOException {
+        Path root = Files.createTempDirectory("jam-watch");
+        Path a = Files.writeString(Files.createDirectories(root.resolve("src/a")).resolve("A.java"), "class A { }");
+        FileWatcher watcher = FileWatcher.watch(root);
+        if (Objects.isNull(watcher)) return; // no native watch service
+        try {
+            assertEquals(Set.of(a), files(watcher, root));
+            assertNull(watcher.files(root.getParent()));
+
+            // modifications are seen by the next query
+            Path b = Files.writeString(Files.createDirectories(root.resolve("src/b/c")).resolve("B.java"), "");
+            assertEquals(Set.of(a, b), files(watcher, root.resolve("src")));
+
+            Files.setLastModifiedTime(a, FileTime.fromMillis(1_000_000_000_000L));
+            assertEquals(Map.of(a, 1_000_000_000_000L), watcher.modificationTimes(List.of(a)));
+
+            Files.delete(a);
+            Files.delete(root.resolve("src/a"));
+            assertEquals(Set.of(b), files(watcher, root));
+            assertEquals(Map.of(a, 0L), watcher.modificationTimes(List.of(a)));
+            assertEquals(List.of(b), watcher.files(b).toList());
+        } finally {
+            watcher.close();
+            Paths.rmDir(root);
+        }
+    }
+
+    @Test public void testSkippedDirectories() throws IOException {
+        Path root = Files.createTempDirectory("jam-watch");
+        Path a = Files.writeString(Files.createDirectories(root.resolve("src")).resolve("A.java"), "class A { }");
+        Path git = Files.writeString(Files.createDirectories(root.resolve(".git")).resolve("HEAD"), "");
+        Path built = Files.writeString(Files.createDirectories(root.resolve("build")).resolve("A.class"), "");
+        FileWatcher watcher = FileWatcher.watch(root, List.of(root.resolve("build")));
+        if (Objects.isNull(watcher)) return; // no native watch service
+        try {
+            assertEquals(Set.of(a), files(watcher, root.resolve("src")));
+            assertFalse(Files.exists(root.resolve(".jam-watch")));
+
+            // queries which include hidden or excluded directories are left to the caller
+            assertNull(watcher.files(root));
+            assertNull(watcher.files(root.resolve("build")));
+            assertEquals(Set.of(a), watcher.modificationTimes(List.of(git, built, a)).keySet());
+        } finally {
+            watcher.close();
+            Paths.rmDir(root);
+        }
+    }
+}
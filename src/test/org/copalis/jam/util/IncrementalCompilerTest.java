@@ -0,0 +1,142 @@
+package org.copalis.jam.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+public class IncrementalCompilerTest {
+
+    static Set<String> compile(Path src, Path classes) throws IOException {
+        return compile(src, classes, List.of("--release", "17"));
+    }
+
+    static Set<String> compile(Path src, Path classes, List<String> options) throws IOException {
+        List<File> sources;
+        try (Stream<Path> files = Files.list(src)) {
+            sources = files.map(Path::toFile).toList();
+        }
+        // mark the existing class files so that recompiled ones can be identified
+        try (Stream<Path> files = Files.list(classes)) {
+            for (Path file : files.toList()) {
+                Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+            }
+        }
+        IncrementalCompiler.compile(sources, classes, options);
+
+        Set<String> recompiled = new TreeSet<>();
+        try (Stream<Path> files = Files.list(classes)) {
+            for (Path file : files.toList()) {
+                if (Files.getLastModifiedTime(file).toMillis() > 0) recompiled.add(file.getFileName().toString());
+            }
+        }
+        return recompiled;
+    }
+
+    @Test public void testIncrementalCompilation() throws IOException {
+        Path dir = Files.createTempDirectory("jam-javac");
+        Path src = Files.createDirectories(dir.resolve("src")), classes = Files.createDirectories(dir.resolve("classes"));
+        try {
+            Files.writeString(src.resolve("A.java"), "public class A { public int a() { return 1; } }");
+            Files.writeString(src.resolve("B.java"), "public class B { long b() { return new A().a(); } }");
+            Files.writeString(src.resolve("C.java"), "public class C { static final int X = 1; }");
+            assertEquals(Set.of("A.class", "B.class", "C.class"), compile(src, classes));
+            assertEquals(Set.of(), compile(src, classes));
+
+            ClassFile b = ClassFile.read(classes.resolve("B.class"));
+            assertEquals("B", b.name());
+            assertTrue(b.references().contains("A"));
+
+            // a change to a method body does not recompile dependents
+            Files.writeString(src.resolve("A.java"), "public class A { public int a() { return 2; } }");
+            assertEquals(Set.of("A.class"), compile(src, classes));
+
+            // a change to the API recompiles dependents
+            Files.writeString(src.resolve("A.java"), "public class A { public long a() { return 2; } }");
+            assertEquals(Set.of("A.class", "B.class"), compile(src, classes));
+
+            // a change to a constant recompiles everything
+            Files.writeString(src.resolve("C.java"), "public class C { static final int X = 2; }");
+            assertEquals(Set.of("A.class", "B.class", "C.class"), compile(src, classes));
+
+            // the class files of deleted sources are deleted
+            Files.delete(src.resolve("C.java"));
+            assertEquals(Set.of(), compile(src, classes));
+            assertFalse(Files.exists(classes.resolve("C.class")));
+        } finally {
+            Paths.rmDir(dir);
+        }
+    }
+
+    @Test public void testInheritedApiChange() throws IOException {
+        Path dir = Files.createTempDirectory("jam-javac");
+        Path src = Files.createDirectories(dir.resolve("src")), classes = Files.createDirectories(dir.resolve("classes"));
+        try {
+            Files.writeString(src.resolve("A.java"), "public class A { public void m(int i) { } }");
+            Files.writeString(src.resolve("B.java"), "public class B extends A { }");
+            Files.writeString(src.resolve("C.java"), "public class C { void c() { new B().m(1); } }");
+            assertEquals(Set.of("A.class", "B.class", "C.class"), compile(src, classes));
+            assertEquals(Set.of("A"), ClassFile.read(classes.resolve("B.class")).supertypes());
+
+            // C only refers to B, but calls a method that B inherits from A
+            Files.writeString(src.resolve("A.java"), "public class A { public void m(long i) { } }");
+            assertEquals(Set.of("A.class", "B.class", "C.class"), compile(src, classes));
+        } finally {
+            Paths.rmDir(dir);
+        }
+    }
+
+    @Test public void testAnnotationProcessing() throws IOException {
+        Path dir = Files.createTempDirectory("jam-javac");
+        Path src = Files.createDirectories(dir.resolve("src")), classes = Files.createDirectories(dir.resolve("classes"));
+        try {
+            List<String> options = List.of("-processorpath", dir.toString());
+            Files.writeString(src.resolve("A.java"), "public class A { }");
+            Files.writeString(src.resolve("B.java"), "public class B { }");
+            assertEquals(Set.of("A.class", "B.class"), compile(src, classes, options));
+
+            // processors may read and generate any file, so everything is recompiled
+            assertEquals(Set.of("A.class", "B.class"), compile(src, classes, options));
+        } finally {
+            Paths.rmDir(dir);
+        }
+    }
+
+    static String fingerprint(Path src, Path classes, String source) throws IOException {
+        Files.writeString(src.resolve("A.java"), source);
+        compile(src, classes);
+        try (Stream<Path> files = Files.list(classes)) {
+            return ClassFile.fingerprint(files.map(Path::toFile).toList());
+        }
+    }
+
+    @Test public void testFingerprint() throws IOException {
+        Path dir = Files.createTempDirectory("jam-abi");
+        Path src = Files.createDirectories(dir.resolve("src")), classes = Files.createDirectories(dir.resolve("classes"));
+        try {
+            String abi = fingerprint(src, classes, "public class A { public int a() { return 1; } }");
+            assertEquals(abi, fingerprint(src, classes, "public class A { public int a() { return 2; } }"));
+            assertEquals(abi, fingerprint(src, classes,
+                    "public class A { public int a() { return b(); } private int b() { return 2; } }"));
+            assertNotEquals(abi, fingerprint(src, classes, "public class A { protected int a() { return 2; } }"));
+            assertNotEquals(abi, fingerprint(src, classes,
+                    "public class A { @Deprecated(since = \"1\") public int a() { return 2; } }"));
+            assertNotEquals(abi, fingerprint(src, classes,
+                    "public class A { public static final int X = 1; public int a() { return 2; } }"));
+        } finally {
+            Paths.rmDir(dir);
+        }
+    }
+}
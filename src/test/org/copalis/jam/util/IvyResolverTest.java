@@ -0,0 +1,46 @@
+package org.copalis.jam.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class IvyResolverTest {
+
+    static String sha256(Path file) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file)));
+    }
+
+    @Test public void testLockFile() throws Exception {
+        Path dir = Files.createTempDirectory("jam-ivy");
+        try {
+            // Ivy cannot be downloaded, so dependencies can only be resolved from the lockfile
+            IvyResolver resolver = new IvyResolver(dir.resolve("missing/ivy.jar").toUri().toString(),
+                    dir.resolve("cache").toString(), null);
+            Path jar = Files.writeString(Files.createDirectories(dir.resolve("cache/org/a/jars")).resolve("a-1.jar"), "a");
+            Files.writeString(resolver.lockFile(), """
+                    # Artifacts resolved by Apache Ivy
+                    org:b:1
+                    \t%s missing.jar
+                    org:a:1
+                    \t%s org/a/jars/a-1.jar
+                    """.formatted(sha256(jar), sha256(jar)));
+
+            assertEquals(List.of(jar.toAbsolutePath()), resolver.resolve("org:a:1").toList());
+            assertThrows(RuntimeException.class, () -> resolver.resolve("org:b:1"));
+            assertThrows(RuntimeException.class, () -> resolver.resolve("org:a:1", "org:b:1"));
+
+            // a modified artifact is resolved again
+            Files.writeString(jar, "b");
+            assertThrows(RuntimeException.class, () -> resolver.resolve("org:a:1"));
+        } finally {
+            Paths.rmDir(dir);
+        }
+    }
+}
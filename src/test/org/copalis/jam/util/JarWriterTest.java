@@ -0,0 +1,84 @@
+package org.copalis.jam.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+public class JarWriterTest {
+
+    static byte[] bytes(String str) {
+        return str.repeat(100).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static void write(Path jar, Path file) throws IOException {
+        try (JarWriter writer = new JarWriter(jar)) {
+            writer.add("b", bytes("B"));
+            writer.add("a", bytes("a"));
+            writer.add("dir/c.txt", file);
+        }
+    }
+
+    @Test public void testWrite() throws IOException {
+        Path dir = Files.createTempDirectory("jam-jar");
+        try {
+            Path jar = dir.resolve("test.jar"), file = Files.write(dir.resolve("c.txt"), bytes("c"));
+
+            // an existing archive whose entries are stored without compression
+            try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar))) {
+                out.setMethod(ZipOutputStream.STORED);
+                for (String name : List.of("a", "b")) {
+                    ZipEntry entry = new ZipEntry(name);
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes(name));
+                    entry.setSize(bytes(name).length);
+                    entry.setCrc(crc.getValue());
+                    out.putNextEntry(entry);
+                    out.write(bytes(name));
+                    out.closeEntry();
+                }
+            }
+
+            try (JarWriter writer = new JarWriter(jar)) {
+                writer.add("b", bytes("B"));
+                writer.add("a", bytes("a"));
+                writer.add("dir/c.txt", file);
+                assertThrows(ZipException.class, () -> writer.add("a", bytes("x")));
+            }
+            try (ZipFile zip = new ZipFile(jar.toFile())) {
+                assertEquals(List.of("b", "a", "dir/c.txt"),
+                        Collections.list(zip.entries()).stream().map(ZipEntry::getName).toList());
+                assertEquals(ZipEntry.DEFLATED, zip.getEntry("b").getMethod());
+                assertEquals(ZipEntry.STORED, zip.getEntry("a").getMethod()); // unchanged, so copied
+                assertArrayEquals(bytes("a"), zip.getInputStream(zip.getEntry("a")).readAllBytes());
+                assertArrayEquals(bytes("B"), zip.getInputStream(zip.getEntry("b")).readAllBytes());
+                assertArrayEquals(bytes("c"), zip.getInputStream(zip.getEntry("dir/c.txt")).readAllBytes());
+            }
+
+            // the same contents produce the same archive, whether or not it is rewritten
+            Files.delete(jar);
+            write(jar, file);
+            byte[] archive = Files.readAllBytes(jar);
+            Files.delete(jar);
+            write(jar, file);
+            assertArrayEquals(archive, Files.readAllBytes(jar));
+            write(jar, file);
+            assertArrayEquals(archive, Files.readAllBytes(jar));
+        } finally {
+            Paths.rmDir(dir);
+        }
+    }
+}